@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.limpoxe.downloads;
+
+/**
+ * Fixed-size set of block flags for a download, with a compact byte form
+ * suitable for persisting in a BLOB column of {@link DownloadProvider}.
+ */
+class BlockBitmap {
+    private final int mBlockCount;
+    private final byte[] mBits;
+
+    public BlockBitmap(int blockCount) {
+        mBlockCount = blockCount;
+        mBits = new byte[(blockCount + 7) / 8];
+    }
+
+    /**
+     * Rebuild a bitmap from its persisted form. Missing or mismatched data
+     * yields an empty bitmap, since we can't trust any of its flags.
+     */
+    public static BlockBitmap fromByteArray(int blockCount, byte[] bytes) {
+        final BlockBitmap bitmap = new BlockBitmap(blockCount);
+        if (bytes != null && bytes.length == bitmap.mBits.length) {
+            System.arraycopy(bytes, 0, bitmap.mBits, 0, bytes.length);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Return number of blocks needed to cover the given length.
+     */
+    public static int blockCount(long length, int blockSize) {
+        return (int) ((length + blockSize - 1) / blockSize);
+    }
+
+    public int size() {
+        return mBlockCount;
+    }
+
+    public boolean get(int block) {
+        return (mBits[block >> 3] & (1 << (block & 7))) != 0;
+    }
+
+    public void set(int block) {
+        mBits[block >> 3] |= (1 << (block & 7));
+    }
+
+    public void clear(int block) {
+        mBits[block >> 3] &= ~(1 << (block & 7));
+    }
+
+    /**
+     * Return the first block at or after the given index that is not set, or
+     * {@link #size()} when every remaining block is set.
+     */
+    public int nextClearBlock(int from) {
+        for (int i = from; i < mBlockCount; i++) {
+            if (!get(i)) {
+                return i;
+            }
+        }
+        return mBlockCount;
+    }
+
+    public int cardinality() {
+        int count = 0;
+        for (int i = 0; i < mBlockCount; i++) {
+            if (get(i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public boolean isComplete() {
+        return nextClearBlock(0) == mBlockCount;
+    }
+
+    public byte[] toByteArray() {
+        return mBits.clone();
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.limpoxe.downloads;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.limpoxe.downloads.Downloads.Impl.STATUS_BAD_REQUEST;
+import static com.limpoxe.downloads.Downloads.Impl.STATUS_FILE_ERROR;
+import static com.limpoxe.downloads.Downloads.Impl.STATUS_HTTP_DATA_ERROR;
+
+/**
+ * Checks a download against the per-block hash manifest attached with
+ * {@link DownloadManager.Request#setBlockHashes(String, int, byte[])}. Blocks
+ * are hashed while they stream in, and the set of verified blocks is persisted
+ * in the download row so that only corrupt blocks need fetching again.
+ */
+class BlockVerifier {
+    private final int mBlockSize;
+    private final byte[] mHashes;
+    private final MessageDigest mDigest;
+    private final int mDigestLength;
+    private final BlockBitmap mVerified;
+
+    /** Absolute offset of the next byte passed to {@link #update}. */
+    private long mPosition;
+
+    private BlockVerifier(String algorithm, int blockSize, byte[] hashes, byte[] verifiedMap)
+            throws StopRequestException {
+        try {
+            mDigest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new StopRequestException(STATUS_BAD_REQUEST, e);
+        }
+        mDigestLength = mDigest.getDigestLength();
+        if (blockSize <= 0 || mDigestLength == 0 || hashes.length % mDigestLength != 0) {
+            throw new StopRequestException(STATUS_BAD_REQUEST, "Malformed block hashes");
+        }
+        mBlockSize = blockSize;
+        mHashes = hashes;
+        mVerified = BlockBitmap.fromByteArray(hashes.length / mDigestLength, verifiedMap);
+    }
+
+    /**
+     * Load the manifest of the given download, or return {@code null} when it
+     * has none.
+     */
+    public static BlockVerifier load(Context context, DownloadInfo info)
+            throws StopRequestException {
+        if (info.mHashAlgorithm == null) {
+            return null;
+        }
+        final Cursor cursor = DownloadsDao.getInstance(context).queryDownload(info.mId,
+                new String[] {
+                        Downloads.Impl.COLUMN_BLOCK_HASHES, Downloads.Impl.COLUMN_VERIFIED_MAP
+                });
+        if (cursor == null) {
+            throw new StopRequestException(STATUS_FILE_ERROR, "Missing cursor for block hashes");
+        }
+        try {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                return null;
+            }
+            return new BlockVerifier(info.mHashAlgorithm, info.mHashBlockSize,
+                    cursor.getBlob(0), cursor.getBlob(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public byte[] getVerifiedMap() {
+        return mVerified.toByteArray();
+    }
+
+    /**
+     * Prepare to stream data starting at the given offset, hashing the part
+     * of its block that is already on disk. The channel may be {@code null}
+     * when the offset falls on a block boundary.
+     */
+    public void seek(FileChannel channel, long position) throws StopRequestException {
+        mDigest.reset();
+        mPosition = position;
+        final long blockStart = position - position % mBlockSize;
+        if (blockStart < position) {
+            readInto(channel, blockStart, (int) (position - blockStart));
+        }
+    }
+
+    /**
+     * Hash data as it is written at the current position, checking each block
+     * once it is complete. The last, usually short, block is left to
+     * {@link #verifyRemaining}.
+     */
+    public void update(byte[] buffer, int offset, int len) {
+        while (len > 0) {
+            final int inBlock = (int) (mPosition % mBlockSize);
+            final int count = Math.min(len, mBlockSize - inBlock);
+            mDigest.update(buffer, offset, count);
+            offset += count;
+            len -= count;
+            mPosition += count;
+            if (inBlock + count == mBlockSize) {
+                finishBlock((int) ((mPosition - 1) / mBlockSize), mDigest.digest());
+            }
+        }
+    }
+
+    /**
+     * Read back every block that isn't verified yet and check it.
+     *
+     * @return inclusive byte ranges of the blocks that failed, merged where
+     *         adjacent.
+     */
+    public List<long[]> verifyRemaining(FileChannel channel, long length)
+            throws StopRequestException {
+        if (BlockBitmap.blockCount(length, mBlockSize) != mVerified.size()) {
+            throw new StopRequestException(STATUS_HTTP_DATA_ERROR, "Expected "
+                    + mVerified.size() + " blocks but download is " + length + " bytes");
+        }
+
+        final List<long[]> failed = new ArrayList<long[]>();
+        int block = mVerified.nextClearBlock(0);
+        while (block < mVerified.size()) {
+            final long start = (long) block * mBlockSize;
+            final long end = Math.min(start + mBlockSize, length) - 1;
+            mDigest.reset();
+            readInto(channel, start, (int) (end - start + 1));
+            if (!finishBlock(block, mDigest.digest())) {
+                final long[] last = failed.isEmpty() ? null : failed.get(failed.size() - 1);
+                if (last != null && last[1] + 1 == start) {
+                    last[1] = end;
+                } else {
+                    failed.add(new long[] { start, end });
+                }
+            }
+            block = mVerified.nextClearBlock(block + 1);
+        }
+        return failed;
+    }
+
+    private boolean finishBlock(int block, byte[] digest) {
+        final boolean match = block < mVerified.size() && regionEquals(digest, block);
+        if (match) {
+            mVerified.set(block);
+        } else if (block < mVerified.size()) {
+            mVerified.clear(block);
+        }
+        return match;
+    }
+
+    private boolean regionEquals(byte[] digest, int block) {
+        final int offset = block * mDigestLength;
+        for (int i = 0; i < mDigestLength; i++) {
+            if (digest[i] != mHashes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Feed bytes already on disk into the digest.
+     */
+    private void readInto(FileChannel channel, long position, int count)
+            throws StopRequestException {
+        final ByteBuffer buf = ByteBuffer.allocate(Math.min(count, Constants.BUFFER_SIZE));
+        try {
+            while (count > 0) {
+                buf.clear();
+                buf.limit(Math.min(count, buf.capacity()));
+                final int len = channel.read(buf, position);
+                if (len == -1) {
+                    throw new StopRequestException(STATUS_FILE_ERROR, "Download file truncated");
+                }
+                mDigest.update(buf.array(), 0, len);
+                position += len;
+                count -= len;
+            }
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.limpoxe.downloads;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.limpoxe.downloads.utils.GuardedBy;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Rate-limits {@link ContentResolver#notifyChange} per URI. The first change
+ * after a quiet period goes out at once; further changes within the minimum
+ * interval are merged into a single notification sent when it ends.
+ */
+class ChangeCoalescer {
+    /** Number of remembered send times that triggers pruning stale ones */
+    private static final int PRUNE_THRESHOLD = 256;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final long mDefaultInterval;
+
+    /** Minimum intervals set for URIs and everything below them */
+    @GuardedBy("this")
+    private final Map<String, Long> mIntervals = new HashMap<String, Long>();
+    /** Uptime of the last notification sent for each URI */
+    @GuardedBy("this")
+    private final Map<Uri, Long> mLastSent = new HashMap<Uri, Long>();
+    @GuardedBy("this")
+    private final Map<Uri, Runnable> mPending = new HashMap<Uri, Runnable>();
+
+    public ChangeCoalescer(ContentResolver resolver, Handler handler, long defaultInterval) {
+        mResolver = resolver;
+        mHandler = handler;
+        mDefaultInterval = defaultInterval;
+    }
+
+    /**
+     * Set the minimum time between notifications for the given URI and the
+     * URIs below it, or restore the default when negative.
+     */
+    public synchronized void setMinInterval(Uri uri, long intervalMillis) {
+        if (intervalMillis < 0) {
+            mIntervals.remove(uri.toString());
+        } else {
+            mIntervals.put(uri.toString(), intervalMillis);
+        }
+    }
+
+    /**
+     * Notify observers of the given URI, merging with other changes inside
+     * its minimum interval.
+     */
+    public void notifyChange(final Uri uri) {
+        final long now = SystemClock.uptimeMillis();
+        synchronized (this) {
+            if (mPending.containsKey(uri)) {
+                return;
+            }
+            final Long lastSent = mLastSent.get(uri);
+            final long due = (lastSent != null) ? lastSent + getMinInterval(uri) : now;
+            if (due > now) {
+                final Runnable send = new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (ChangeCoalescer.this) {
+                            if (mPending.get(uri) != this) {
+                                return;
+                            }
+                            mPending.remove(uri);
+                            mLastSent.put(uri, SystemClock.uptimeMillis());
+                        }
+                        mResolver.notifyChange(uri, null);
+                    }
+                };
+                mPending.put(uri, send);
+                mHandler.postAtTime(send, due);
+                return;
+            }
+            markSentLocked(uri, now);
+        }
+        mResolver.notifyChange(uri, null);
+    }
+
+    /**
+     * Notify observers of the given URI right away, absorbing any merged
+     * notification still waiting for it.
+     */
+    public void notifyChangeNow(Uri uri) {
+        synchronized (this) {
+            final Runnable pending = mPending.remove(uri);
+            if (pending != null) {
+                mHandler.removeCallbacks(pending);
+            }
+            markSentLocked(uri, SystemClock.uptimeMillis());
+        }
+        mResolver.notifyChange(uri, null);
+    }
+
+    private long getMinInterval(Uri uri) {
+        final String target = uri.toString();
+        String best = null;
+        for (String prefix : mIntervals.keySet()) {
+            if (target.startsWith(prefix) && (best == null || prefix.length() > best.length())) {
+                best = prefix;
+            }
+        }
+        return (best != null) ? mIntervals.get(best) : mDefaultInterval;
+    }
+
+    private void markSentLocked(Uri uri, long now) {
+        mLastSent.put(uri, now);
+        if (mLastSent.size() > PRUNE_THRESHOLD) {
+            // Forget URIs that are past their interval anyway
+            final Iterator<Map.Entry<Uri, Long>> it = mLastSent.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<Uri, Long> entry = it.next();
+                if (entry.getValue() + getMinInterval(entry.getKey()) <= now) {
+                    it.remove();
+                }
+            }
+        }
+    }
+}
@@ -44,9 +44,15 @@ public class Constants {
     /** The column that is used for the initiating app's UID */
     public static final String UID = "uid";
 
+    /** The column that is used for the time the file was last opened for reading */
+    public static final String LAST_ACCESS = "lastaccess";
+
     /** The intent that gets sent when the service must wake up for a retry */
     public static final String ACTION_RETRY = "com.limpoxe.downloads.action.DOWNLOAD_WAKEUP";
 
+    /** The intent that gets sent when the periodic cleanup job is due */
+    public static final String ACTION_CLEANUP = "com.limpoxe.downloads.action.DOWNLOAD_CLEANUP";
+
     /** the intent that gets sent when clicking a successful download */
     public static final String ACTION_OPEN = "com.limpoxe.downloads.action.DOWNLOAD_OPEN";
 
@@ -122,6 +128,61 @@ public class Constants {
     /** The minimum amount of time that has to elapse before the progress bar gets updated, in ms */
     public static final long MIN_PROGRESS_TIME = 2000;
 
+    /** The size of each block of a sparse download, fetched as a unit */
+    public static final int SPARSE_BLOCK_SIZE = 64 * 1024;
+
+    /** The number of extra blocks fetched after a read of a sparse download */
+    public static final int SPARSE_READ_AHEAD_BLOCKS = 4;
+
+    /** The maximum number of blocks fetched per request when filling a sparse download */
+    public static final int SPARSE_FILL_BLOCKS = 16;
+
+    /**
+     * The time that asynchronous enqueues are gathered for before being
+     * written in a single transaction, in ms
+     */
+    public static final long ENQUEUE_COMMIT_DELAY = 50;
+
+    /** The number of queued asynchronous enqueues that triggers an early commit */
+    public static final int ENQUEUE_COMMIT_MAX = 256;
+
+    /**
+     * The number of entries kept in the provider's change log; a service that
+     * falls further behind rescans the whole table
+     */
+    public static final int CHANGE_LOG_MAX = 4096;
+
+    /** The default minimum time between change notifications for a URI */
+    public static final long MIN_NOTIFY_INTERVAL = 1000;
+
+    /**
+     * The time that progress checkpoints of all running downloads are
+     * gathered for before being written in a single transaction, in ms
+     */
+    public static final long PROGRESS_COMMIT_DELAY = 500;
+
+    /**
+     * The default age after which finished downloads are moved to the
+     * archive, in ms
+     */
+    public static final long DEFAULT_ARCHIVE_AGE = 30L * 24 * 60 * 60 * 1000;
+
+    /** Name of the preferences holding settings of the download manager */
+    public static final String PREFS_NAME = "downloads";
+
+    /** Preference holding the archive age set through the download manager */
+    public static final String PREF_ARCHIVE_AGE = "archive_age";
+
+    /** The maximum number of byte ranges asked for in a single request */
+    public static final int MAX_RANGES_PER_REQUEST = 16;
+
+    /**
+     * Selection matching downloads that haven't reached a final status. Kept
+     * verbatim so that SQLite can match it against the partial index of
+     * active downloads.
+     */
+    public static final String ACTIVE_SELECTION = Downloads.Impl.COLUMN_STATUS + " < '200'";
+
     /**
      * The number of times that the download manager will retry its network
      * operations when no progress is happening before it gives up.
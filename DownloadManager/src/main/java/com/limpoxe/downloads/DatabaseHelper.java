@@ -0,0 +1,905 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.limpoxe.downloads;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Creates and updated database on demand when opening it.
+ * Helper class to create database the first time the provider is
+ * initialized and upgrade it when a new version of the provider needs
+ * an updated version of the database.
+ */
+final class DatabaseHelper extends SQLiteOpenHelper {
+    /** Database filename */
+    private static final String DB_NAME = "downloads.db";
+    /** Current database version */
+    private static final int DB_VERSION = 122;
+    /** Name of table in the database */
+    static final String DB_TABLE = "downloads";
+    /** Name of the narrow table holding the columns rewritten by every checkpoint */
+    static final String PROGRESS_TABLE = "download_progress";
+    /** Name of the view joining {@link #DB_TABLE} and {@link #PROGRESS_TABLE} */
+    static final String DOWNLOADS_VIEW = "downloads_view";
+    /**
+     * Name of the table holding old finished downloads, with the columns of
+     * {@link #DOWNLOADS_VIEW} in the same order. Adding a column to either
+     * underlying table calls for {@link #rebuildArchiveTable}.
+     */
+    static final String ARCHIVE_TABLE = "downloads_archive";
+    /** Source of reads that should see archived downloads as well */
+    static final String DOWNLOADS_WITH_ARCHIVE = "(SELECT * FROM " + DOWNLOADS_VIEW
+            + " UNION ALL SELECT * FROM " + ARCHIVE_TABLE + ")";
+    /** Columns of {@link #PROGRESS_TABLE} besides its ID */
+    static final String[] PROGRESS_COLUMNS = new String[] {
+            Downloads.Impl.COLUMN_CURRENT_BYTES,
+            Downloads.Impl.COLUMN_TOTAL_BYTES,
+            Downloads.Impl.COLUMN_STATUS,
+            Downloads.Impl.COLUMN_LAST_MODIFICATION,
+            Downloads.Impl.COLUMN_FAILED_CONNECTIONS,
+            Constants.RETRY_AFTER_X_REDIRECT_COUNT,
+    };
+    /** Name of the table counting the bytes held by the downloads of each owner */
+    static final String USAGE_TABLE = "owner_usage";
+    /** Column of {@link #USAGE_TABLE} naming the owner */
+    static final String COLUMN_OWNER = "owner";
+    /** Column of {@link #USAGE_TABLE} holding the bytes the owner's downloads hold */
+    static final String COLUMN_USAGE_BYTES = "bytes";
+    /** Name of the table counting downloads and their bytes by owner and status */
+    static final String SUMMARY_TABLE = "download_summary";
+    /**
+     * Column of {@link #SUMMARY_TABLE} holding the status class, one of the
+     * STATUS_* flags of {@link DownloadManager}
+     */
+    static final String COLUMN_STATUS_CLASS = "status";
+    /** Column of {@link #SUMMARY_TABLE} holding the number of downloads */
+    static final String COLUMN_SUMMARY_COUNT = "count";
+    /** Column of {@link #SUMMARY_TABLE} holding the bytes downloaded so far */
+    static final String COLUMN_SUMMARY_BYTES = "bytes";
+    /** Column of {@link #SUMMARY_TABLE} holding the bytes left of known sizes */
+    static final String COLUMN_SUMMARY_REMAINING = "remaining";
+    /** Name of the table logging which downloads changed, in order */
+    static final String CHANGES_TABLE = "download_changes";
+    /** Column of {@link #CHANGES_TABLE} holding the changed download's ID */
+    static final String COLUMN_CHANGED_ID = "download_id";
+    /** Page cache size of the primary connection, in KiB */
+    private static final int DB_CACHE_SIZE_KB = 2048;
+    /** Upper bound on the part of the database that SQLite may memory-map */
+    private static final long DB_MMAP_SIZE = 8 * 1024 * 1024;
+    /** Value of PRAGMA auto_vacuum once free pages are kept for incremental_vacuum */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private static DatabaseHelper sInstance;
+
+    /**
+     * Return the helper shared by {@link DownloadProvider} and the engine
+     * running in the same process.
+     */
+    public static synchronized DatabaseHelper getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DatabaseHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DatabaseHelper(final Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // Lets queries read from pooled connections while download
+            // threads commit progress
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Only called on JB and later
+        configureConnection(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                db.enableWriteAheadLogging();
+            }
+            configureConnection(db);
+        }
+    }
+
+    /**
+     * Tune the primary connection. With a write-ahead log, NORMAL sync
+     * keeps the database consistent and only risks losing the last
+     * commits on power loss, which progress updates can afford.
+     */
+    private void configureConnection(SQLiteDatabase db) {
+        pragma(db, "synchronous = NORMAL");
+        // Only takes effect on a new database, or after the next VACUUM
+        pragma(db, "auto_vacuum = INCREMENTAL");
+        pragma(db, "cache_size = -" + DB_CACHE_SIZE_KB);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            pragma(db, "mmap_size = " + DB_MMAP_SIZE);
+        }
+    }
+
+    private void pragma(SQLiteDatabase db, String pragma) {
+        // Some pragmas return a row, which execSQL() refuses
+        final Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the pages freed by deleted rows to the file system. Databases
+     * created before incremental vacuuming was enabled get one full VACUUM
+     * to switch them over. Must not be called inside a transaction.
+     */
+    void compact() {
+        final SQLiteDatabase db = getWritableDatabase();
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            db.execSQL("VACUUM");
+            return;
+        }
+        // Every step frees one page, so run it to the end
+        final Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum", null);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Creates database the first time we try to open it.
+     */
+    @Override
+    public void onCreate(final SQLiteDatabase db) {
+        if (Constants.LOGVV) {
+            Log.v(Constants.TAG, "populating new database");
+        }
+        onUpgrade(db, 0, DB_VERSION);
+    }
+
+    /**
+     * Updates the database format when a content provider is used
+     * with a database that was created with a different format.
+     *
+     * Note: to support downgrades, creating a table should always drop it first if it already
+     * exists.
+     */
+    @Override
+    public void onUpgrade(final SQLiteDatabase db, int oldV, final int newV) {
+        if (oldV == 31) {
+            // 31 and 100 are identical, just in different codelines. Upgrading from 31 is the
+            // same as upgrading from 100.
+            oldV = 100;
+        } else if (oldV < 100) {
+            // no logic to upgrade from these older version, just recreate the DB
+            Log.i(Constants.TAG, "Upgrading downloads database from version " + oldV
+                  + " to version " + newV + ", which will destroy all old data");
+            oldV = 99;
+        } else if (oldV > newV) {
+            // user must have downgraded software; we have no way to know how to downgrade the
+            // DB, so just recreate it
+            Log.i(Constants.TAG, "Downgrading downloads database from version " + oldV
+                  + " (current version is " + newV + "), destroying all old data");
+            oldV = 99;
+        }
+
+        for (int version = oldV + 1; version <= newV; version++) {
+            upgradeTo(db, version);
+        }
+    }
+
+    /**
+     * Upgrade database from (version - 1) to version.
+     */
+    private void upgradeTo(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 100:
+                createDownloadsTable(db);
+                break;
+
+            case 101:
+                createHeadersTable(db);
+                break;
+
+            case 102:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_IS_PUBLIC_API,
+                          "INTEGER NOT NULL DEFAULT 0");
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_ALLOW_ROAMING,
+                          "INTEGER NOT NULL DEFAULT 0");
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_ALLOWED_NETWORK_TYPES,
+                          "INTEGER NOT NULL DEFAULT 0");
+                break;
+
+            case 103:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI,
+                          "INTEGER NOT NULL DEFAULT 1");
+                makeCacheDownloadsInvisible(db);
+                break;
+
+            case 104:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT,
+                        "INTEGER NOT NULL DEFAULT 0");
+                break;
+
+            case 105:
+                fillNullValues(db);
+                break;
+
+            case 106:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_MEDIAPROVIDER_URI, "TEXT");
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_DELETED,
+                        "BOOLEAN NOT NULL DEFAULT 0");
+                break;
+
+            case 107:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_ERROR_MSG, "TEXT");
+                break;
+
+            case 108:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_ALLOW_METERED,
+                        "INTEGER NOT NULL DEFAULT 1");
+                break;
+
+            case 109:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_ALLOW_WRITE,
+                        "BOOLEAN NOT NULL DEFAULT 0");
+                break;
+
+            case 110:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_SPARSE,
+                        "INTEGER NOT NULL DEFAULT 0");
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_BLOCK_MAP, "BLOB");
+                break;
+
+            case 111:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_RANGE_START,
+                        "BIGINT NOT NULL DEFAULT 0");
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_RANGE_END,
+                        "BIGINT NOT NULL DEFAULT -1");
+                break;
+
+            case 112:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_ZIP_ENTRIES, "TEXT");
+                break;
+
+            case 113:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_HASH_ALGORITHM, "TEXT");
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_HASH_BLOCK_SIZE,
+                        "INTEGER NOT NULL DEFAULT 0");
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_BLOCK_HASHES, "BLOB");
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_VERIFIED_MAP, "BLOB");
+                break;
+
+            case 114:
+                createDownloadsIndexes(db);
+                break;
+
+            case 115:
+                createChangesTable(db);
+                break;
+
+            case 116:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_LAST_UPDATESRC,
+                        "INTEGER NOT NULL DEFAULT "
+                        + Downloads.Impl.LAST_UPDATESRC_NOT_RELEVANT);
+                // Progress checkpoints stay out of the change log
+                createChangeTrigger(db, "update", "UPDATE", "NEW",
+                        "NEW." + Downloads.Impl.COLUMN_LAST_UPDATESRC + " != "
+                        + Downloads.Impl.LAST_UPDATESRC_DONT_NOTIFY_DOWNLOADSVC);
+                break;
+
+            case 117:
+                splitProgressTable(db);
+                break;
+
+            case 118:
+                createHeadersIndex(db);
+                break;
+
+            case 119:
+                createArchiveTable(db);
+                break;
+
+            case 120:
+                addColumn(db, DB_TABLE, Constants.LAST_ACCESS, "BIGINT NOT NULL DEFAULT 0");
+                rebuildArchiveTable(db);
+                break;
+
+            case 121:
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_QUOTA, "BIGINT NOT NULL DEFAULT -1");
+                addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_QUEUE_OVER_QUOTA,
+                        "BOOLEAN NOT NULL DEFAULT 0");
+                rebuildArchiveTable(db);
+                createUsageTable(db);
+                break;
+
+            case 122:
+                createSummaryTable(db);
+                break;
+
+            default:
+                throw new IllegalStateException("Don't know how to upgrade to " + version);
+        }
+    }
+
+    /**
+     * insert() now ensures these four columns are never null for new downloads, so this method
+     * makes that true for existing columns, so that code can rely on this assumption.
+     */
+    private void fillNullValues(SQLiteDatabase db) {
+        ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, 0);
+        fillNullValuesForColumn(db, values);
+        values.put(Downloads.Impl.COLUMN_TOTAL_BYTES, -1);
+        fillNullValuesForColumn(db, values);
+        values.put(Downloads.Impl.COLUMN_TITLE, "");
+        fillNullValuesForColumn(db, values);
+        values.put(Downloads.Impl.COLUMN_DESCRIPTION, "");
+        fillNullValuesForColumn(db, values);
+    }
+
+    private void fillNullValuesForColumn(SQLiteDatabase db, ContentValues values) {
+        String column = values.valueSet().iterator().next().getKey();
+        db.update(DB_TABLE, values, column + " is null", null);
+        values.clear();
+    }
+
+    /**
+     * Set all existing downloads to the cache partition to be invisible in the downloads UI.
+     */
+    private void makeCacheDownloadsInvisible(SQLiteDatabase db) {
+        ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI, false);
+        String cacheSelection = Downloads.Impl.COLUMN_DESTINATION
+                + " != " + Downloads.Impl.DESTINATION_EXTERNAL;
+        db.update(DB_TABLE, values, cacheSelection, null);
+    }
+
+    /**
+     * Add a column to a table using ALTER TABLE.
+     * @param dbTable name of the table
+     * @param columnName name of the column to add
+     * @param columnDefinition SQL for the column definition
+     */
+    private void addColumn(SQLiteDatabase db, String dbTable, String columnName,
+                           String columnDefinition) {
+        db.execSQL("ALTER TABLE " + dbTable + " ADD COLUMN " + columnName + " "
+                   + columnDefinition);
+    }
+
+    /**
+     * Creates the table that'll hold the download information.
+     */
+    private void createDownloadsTable(SQLiteDatabase db) {
+        try {
+            db.execSQL("DROP TABLE IF EXISTS " + DB_TABLE);
+            db.execSQL("CREATE TABLE " + DB_TABLE + "(" +
+                    Downloads.Impl._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    Downloads.Impl.COLUMN_URI + " TEXT, " +
+                    Constants.RETRY_AFTER_X_REDIRECT_COUNT + " INTEGER, " +
+                    Downloads.Impl.COLUMN_APP_DATA + " TEXT, " +
+                    Downloads.Impl.COLUMN_NO_INTEGRITY + " BOOLEAN, " +
+                    Downloads.Impl.COLUMN_FILE_NAME_HINT + " TEXT, " +
+                    Constants.OTA_UPDATE + " BOOLEAN, " +
+                    Downloads.Impl._DATA + " TEXT, " +
+                    Downloads.Impl.COLUMN_MIME_TYPE + " TEXT, " +
+                    Downloads.Impl.COLUMN_DESTINATION + " INTEGER, " +
+                    Constants.NO_SYSTEM_FILES + " BOOLEAN, " +
+                    Downloads.Impl.COLUMN_VISIBILITY + " INTEGER, " +
+                    Downloads.Impl.COLUMN_CONTROL + " INTEGER, " +
+                    Downloads.Impl.COLUMN_STATUS + " INTEGER, " +
+                    Downloads.Impl.COLUMN_FAILED_CONNECTIONS + " INTEGER, " +
+                    Downloads.Impl.COLUMN_LAST_MODIFICATION + " BIGINT, " +
+                    Downloads.Impl.COLUMN_NOTIFICATION_PACKAGE + " TEXT, " +
+                    Downloads.Impl.COLUMN_NOTIFICATION_CLASS + " TEXT, " +
+                    Downloads.Impl.COLUMN_NOTIFICATION_EXTRAS + " TEXT, " +
+                    Downloads.Impl.COLUMN_COOKIE_DATA + " TEXT, " +
+                    Downloads.Impl.COLUMN_USER_AGENT + " TEXT, " +
+                    Downloads.Impl.COLUMN_REFERER + " TEXT, " +
+                    Downloads.Impl.COLUMN_TOTAL_BYTES + " INTEGER, " +
+                    Downloads.Impl.COLUMN_CURRENT_BYTES + " INTEGER, " +
+                    Constants.ETAG + " TEXT, " +
+                    Constants.UID + " INTEGER, " +
+                    Downloads.Impl.COLUMN_OTHER_UID + " INTEGER, " +
+                    Downloads.Impl.COLUMN_TITLE + " TEXT, " +
+                    Downloads.Impl.COLUMN_DESCRIPTION + " TEXT, " +
+                    Downloads.Impl.COLUMN_MEDIA_SCANNED + " BOOLEAN);");
+        } catch (SQLException ex) {
+            Log.e(Constants.TAG, "couldn't create table in downloads database");
+            throw ex;
+        }
+    }
+
+    /**
+     * Creates indexes for the columns that queries filter and sort on, and
+     * a partial index over downloads that haven't finished yet, which stays
+     * small however much history builds up.
+     */
+    private void createDownloadsIndexes(SQLiteDatabase db) {
+        createIndex(db, "status", Downloads.Impl.COLUMN_STATUS, null);
+        createIndex(db, "lastmod", Downloads.Impl.COLUMN_LAST_MODIFICATION, null);
+        createIndex(db, "uri", Downloads.Impl.COLUMN_URI, null);
+        createIndex(db, "uid", Constants.UID, null);
+        // Partial indexes need SQLite 3.8.0, which first shipped with L
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            createIndex(db, "active", Downloads.Impl.COLUMN_STATUS,
+                    Constants.ACTIVE_SELECTION);
+        }
+    }
+
+    private void createIndex(SQLiteDatabase db, String name, String columns,
+            String where) {
+        createIndex(db, DB_TABLE, name, columns, where);
+    }
+
+    private void createIndex(SQLiteDatabase db, String table, String name, String columns,
+            String where) {
+        final String index = table + "_" + name;
+        db.execSQL("DROP INDEX IF EXISTS " + index);
+        db.execSQL("CREATE INDEX " + index + " ON " + table + "(" + columns + ")"
+                + (where != null ? " WHERE " + where : ""));
+    }
+
+    /**
+     * Moves the columns that every progress checkpoint rewrites out of the
+     * wide downloads rows, which carry URIs, paths, titles and cookies, into
+     * a narrow table keyed by the same ID. The downloads table is rebuilt
+     * without them, and {@link #DOWNLOADS_VIEW} joins both back together for
+     * readers.
+     */
+    private void splitProgressTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + PROGRESS_TABLE);
+        db.execSQL("CREATE TABLE " + PROGRESS_TABLE + "(" +
+                Downloads.Impl._ID + " INTEGER PRIMARY KEY," +
+                Downloads.Impl.COLUMN_CURRENT_BYTES + " INTEGER, " +
+                Downloads.Impl.COLUMN_TOTAL_BYTES + " INTEGER, " +
+                Downloads.Impl.COLUMN_STATUS + " INTEGER, " +
+                Downloads.Impl.COLUMN_LAST_MODIFICATION + " BIGINT, " +
+                Downloads.Impl.COLUMN_FAILED_CONNECTIONS + " INTEGER, " +
+                Constants.RETRY_AFTER_X_REDIRECT_COUNT + " INTEGER);");
+        final String progressColumns = Downloads.Impl._ID + ", "
+                + TextUtils.join(", ", PROGRESS_COLUMNS);
+        db.execSQL("INSERT INTO " + PROGRESS_TABLE + "(" + progressColumns + ") SELECT "
+                + progressColumns + " FROM " + DB_TABLE);
+
+        final String[] columns = new String[] {
+                Downloads.Impl._ID + " INTEGER PRIMARY KEY AUTOINCREMENT",
+                Downloads.Impl.COLUMN_URI + " TEXT",
+                Downloads.Impl.COLUMN_APP_DATA + " TEXT",
+                Downloads.Impl.COLUMN_NO_INTEGRITY + " BOOLEAN",
+                Downloads.Impl.COLUMN_FILE_NAME_HINT + " TEXT",
+                Constants.OTA_UPDATE + " BOOLEAN",
+                Downloads.Impl._DATA + " TEXT",
+                Downloads.Impl.COLUMN_MIME_TYPE + " TEXT",
+                Downloads.Impl.COLUMN_DESTINATION + " INTEGER",
+                Constants.NO_SYSTEM_FILES + " BOOLEAN",
+                Downloads.Impl.COLUMN_VISIBILITY + " INTEGER",
+                Downloads.Impl.COLUMN_CONTROL + " INTEGER",
+                Downloads.Impl.COLUMN_NOTIFICATION_PACKAGE + " TEXT",
+                Downloads.Impl.COLUMN_NOTIFICATION_CLASS + " TEXT",
+                Downloads.Impl.COLUMN_NOTIFICATION_EXTRAS + " TEXT",
+                Downloads.Impl.COLUMN_COOKIE_DATA + " TEXT",
+                Downloads.Impl.COLUMN_USER_AGENT + " TEXT",
+                Downloads.Impl.COLUMN_REFERER + " TEXT",
+                Constants.ETAG + " TEXT",
+                Constants.UID + " INTEGER",
+                Downloads.Impl.COLUMN_OTHER_UID + " INTEGER",
+                Downloads.Impl.COLUMN_TITLE + " TEXT",
+                Downloads.Impl.COLUMN_DESCRIPTION + " TEXT",
+                Downloads.Impl.COLUMN_MEDIA_SCANNED + " BOOLEAN",
+                Downloads.Impl.COLUMN_IS_PUBLIC_API + " INTEGER NOT NULL DEFAULT 0",
+                Downloads.Impl.COLUMN_ALLOW_ROAMING + " INTEGER NOT NULL DEFAULT 0",
+                Downloads.Impl.COLUMN_ALLOWED_NETWORK_TYPES + " INTEGER NOT NULL DEFAULT 0",
+                Downloads.Impl.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI + " INTEGER NOT NULL DEFAULT 1",
+                Downloads.Impl.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT
+                        + " INTEGER NOT NULL DEFAULT 0",
+                Downloads.Impl.COLUMN_MEDIAPROVIDER_URI + " TEXT",
+                Downloads.Impl.COLUMN_DELETED + " BOOLEAN NOT NULL DEFAULT 0",
+                Downloads.Impl.COLUMN_ERROR_MSG + " TEXT",
+                Downloads.Impl.COLUMN_ALLOW_METERED + " INTEGER NOT NULL DEFAULT 1",
+                Downloads.Impl.COLUMN_ALLOW_WRITE + " BOOLEAN NOT NULL DEFAULT 0",
+                Downloads.Impl.COLUMN_SPARSE + " INTEGER NOT NULL DEFAULT 0",
+                Downloads.Impl.COLUMN_BLOCK_MAP + " BLOB",
+                Downloads.Impl.COLUMN_RANGE_START + " BIGINT NOT NULL DEFAULT 0",
+                Downloads.Impl.COLUMN_RANGE_END + " BIGINT NOT NULL DEFAULT -1",
+                Downloads.Impl.COLUMN_ZIP_ENTRIES + " TEXT",
+                Downloads.Impl.COLUMN_HASH_ALGORITHM + " TEXT",
+                Downloads.Impl.COLUMN_HASH_BLOCK_SIZE + " INTEGER NOT NULL DEFAULT 0",
+                Downloads.Impl.COLUMN_BLOCK_HASHES + " BLOB",
+                Downloads.Impl.COLUMN_VERIFIED_MAP + " BLOB",
+                Downloads.Impl.COLUMN_LAST_UPDATESRC + " INTEGER NOT NULL DEFAULT "
+                        + Downloads.Impl.LAST_UPDATESRC_NOT_RELEVANT,
+        };
+        final StringBuilder names = new StringBuilder();
+        for (String column : columns) {
+            if (names.length() > 0) {
+                names.append(", ");
+            }
+            names.append(column.substring(0, column.indexOf(' ')));
+        }
+
+        // Dropping the old table also drops its indexes and triggers, and
+        // its AUTOINCREMENT sequence, which must survive so IDs of deleted
+        // downloads are never handed out again
+        final long sequence = DatabaseUtils.longForQuery(db, "SELECT IFNULL((SELECT seq"
+                + " FROM sqlite_sequence WHERE name = ?), 0)", new String[] { DB_TABLE });
+        final String newTable = DB_TABLE + "_new";
+        db.execSQL("DROP TABLE IF EXISTS " + newTable);
+        db.execSQL("CREATE TABLE " + newTable + "(" + TextUtils.join(", ", columns) + ");");
+        db.execSQL("INSERT INTO " + newTable + "(" + names + ") SELECT " + names
+                + " FROM " + DB_TABLE);
+        db.execSQL("DROP TABLE " + DB_TABLE);
+        db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + DB_TABLE);
+        db.delete("sqlite_sequence", "name = ?", new String[] { DB_TABLE });
+        final ContentValues seqValues = new ContentValues();
+        seqValues.put("name", DB_TABLE);
+        seqValues.put("seq", sequence);
+        db.insert("sqlite_sequence", null, seqValues);
+
+        createIndex(db, "uri", Downloads.Impl.COLUMN_URI, null);
+        createIndex(db, "uid", Constants.UID, null);
+        createIndex(db, PROGRESS_TABLE, "status", Downloads.Impl.COLUMN_STATUS, null);
+        createIndex(db, PROGRESS_TABLE, "lastmod", Downloads.Impl.COLUMN_LAST_MODIFICATION,
+                null);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            createIndex(db, PROGRESS_TABLE, "active", Downloads.Impl.COLUMN_STATUS,
+                    Constants.ACTIVE_SELECTION);
+        }
+
+        createChangeTrigger(db, "insert", "INSERT", "NEW", null);
+        createChangeTrigger(db, "update", "UPDATE", "NEW",
+                "NEW." + Downloads.Impl.COLUMN_LAST_UPDATESRC + " != "
+                + Downloads.Impl.LAST_UPDATESRC_DONT_NOTIFY_DOWNLOADSVC);
+        createChangeTrigger(db, "delete", "DELETE", "OLD", null);
+        db.execSQL("DROP TRIGGER IF EXISTS " + PROGRESS_TABLE + "_cleanup");
+        db.execSQL("CREATE TRIGGER " + PROGRESS_TABLE + "_cleanup AFTER DELETE ON " + DB_TABLE
+                + " BEGIN DELETE FROM " + PROGRESS_TABLE + " WHERE " + Downloads.Impl._ID
+                + " = OLD." + Downloads.Impl._ID + "; END");
+
+        db.execSQL("DROP VIEW IF EXISTS " + DOWNLOADS_VIEW);
+        db.execSQL("CREATE VIEW " + DOWNLOADS_VIEW + " AS SELECT " + DB_TABLE + ".*, "
+                + TextUtils.join(", ", PROGRESS_COLUMNS) + " FROM " + DB_TABLE + " JOIN "
+                + PROGRESS_TABLE + " USING (" + Downloads.Impl._ID + ")");
+    }
+
+    /**
+     * Creates the change log, filled by triggers on every write to the
+     * downloads table, so that {@link DownloadService} can pick up only the
+     * rows that changed since its last pass. AUTOINCREMENT keeps sequence
+     * numbers from being reused once old entries are trimmed.
+     */
+    private void createChangesTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + CHANGES_TABLE);
+        db.execSQL("CREATE TABLE " + CHANGES_TABLE + "(" +
+                BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                COLUMN_CHANGED_ID + " INTEGER NOT NULL);");
+        createChangeTrigger(db, "insert", "INSERT", "NEW", null);
+        createChangeTrigger(db, "update", "UPDATE", "NEW", null);
+        createChangeTrigger(db, "delete", "DELETE", "OLD", null);
+        db.execSQL("DROP TRIGGER IF EXISTS " + CHANGES_TABLE + "_trim");
+        db.execSQL("CREATE TRIGGER " + CHANGES_TABLE + "_trim AFTER INSERT ON "
+                + CHANGES_TABLE + " BEGIN DELETE FROM " + CHANGES_TABLE + " WHERE "
+                + BaseColumns._ID + " <= NEW." + BaseColumns._ID + " - "
+                + Constants.CHANGE_LOG_MAX + "; END");
+    }
+
+    private void createChangeTrigger(SQLiteDatabase db, String name, String event,
+            String row, String when) {
+        final String trigger = DB_TABLE + "_log_" + name;
+        db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+        db.execSQL("CREATE TRIGGER " + trigger + " AFTER " + event + " ON " + DB_TABLE
+                + (when != null ? " WHEN " + when : "")
+                + " BEGIN INSERT INTO " + CHANGES_TABLE + "(" + COLUMN_CHANGED_ID
+                + ") VALUES (" + row + "." + Downloads.Impl._ID + "); END");
+    }
+
+    /**
+     * Indexes request headers by download, so they can be loaded for many
+     * downloads in one query, and removes them along with their download.
+     */
+    private void createHeadersIndex(SQLiteDatabase db) {
+        final String headersTable = Downloads.Impl.RequestHeaders.HEADERS_DB_TABLE;
+        createIndex(db, headersTable, "download_id",
+                Downloads.Impl.RequestHeaders.COLUMN_DOWNLOAD_ID, null);
+        db.execSQL("DROP TRIGGER IF EXISTS " + headersTable + "_cleanup");
+        db.execSQL("CREATE TRIGGER " + headersTable + "_cleanup AFTER DELETE ON " + DB_TABLE
+                + " BEGIN DELETE FROM " + headersTable + " WHERE "
+                + Downloads.Impl.RequestHeaders.COLUMN_DOWNLOAD_ID + " = OLD."
+                + Downloads.Impl._ID + "; END");
+        // Drop headers left behind by downloads deleted before the trigger
+        db.execSQL("DELETE FROM " + headersTable + " WHERE "
+                + Downloads.Impl.RequestHeaders.COLUMN_DOWNLOAD_ID + " NOT IN (SELECT "
+                + Downloads.Impl._ID + " FROM " + DB_TABLE + ")");
+    }
+
+    /**
+     * Creates {@link #ARCHIVE_TABLE}, shaped after {@link #DOWNLOADS_VIEW} so
+     * that rows move over whole and queries can read both alike.
+     */
+    private void createArchiveTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + ARCHIVE_TABLE);
+        db.execSQL("CREATE TABLE " + ARCHIVE_TABLE + " AS SELECT * FROM " + DOWNLOADS_VIEW
+                + " WHERE 0");
+        db.execSQL("DROP INDEX IF EXISTS " + ARCHIVE_TABLE + "_id");
+        db.execSQL("CREATE UNIQUE INDEX " + ARCHIVE_TABLE + "_id ON " + ARCHIVE_TABLE + "("
+                + Downloads.Impl._ID + ")");
+        createIndex(db, ARCHIVE_TABLE, "lastmod", Downloads.Impl.COLUMN_LAST_MODIFICATION,
+                null);
+    }
+
+    /**
+     * Recreates {@link #ARCHIVE_TABLE} after the columns of
+     * {@link #DOWNLOADS_VIEW} changed, carrying archived rows over by name.
+     */
+    private void rebuildArchiveTable(SQLiteDatabase db) {
+        // Triggers go with the old table, so remember them for the new one
+        final ArrayList<String> triggers = new ArrayList<String>();
+        final Cursor triggerCursor = db.query("sqlite_master", new String[] { "sql" },
+                "type = 'trigger' AND tbl_name = ?", new String[] { ARCHIVE_TABLE },
+                null, null, null);
+        try {
+            while (triggerCursor.moveToNext()) {
+                triggers.add(triggerCursor.getString(0));
+            }
+        } finally {
+            triggerCursor.close();
+        }
+
+        final String oldTable = ARCHIVE_TABLE + "_old";
+        db.execSQL("DROP TABLE IF EXISTS " + oldTable);
+        db.execSQL("ALTER TABLE " + ARCHIVE_TABLE + " RENAME TO " + oldTable);
+
+        final ArrayList<String> columns = new ArrayList<String>();
+        final Cursor cursor = db.rawQuery("PRAGMA table_info(" + oldTable + ")", null);
+        try {
+            final int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(nameIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        createArchiveTable(db);
+        final String columnList = TextUtils.join(", ", columns);
+        db.execSQL("INSERT INTO " + ARCHIVE_TABLE + " (" + columnList + ") SELECT "
+                + columnList + " FROM " + oldTable);
+        db.execSQL("DROP TABLE " + oldTable);
+        for (String trigger : triggers) {
+            db.execSQL(trigger);
+        }
+    }
+
+    /**
+     * Creates {@link #USAGE_TABLE}, counting the bytes held by the downloads
+     * of each owner, archived ones included, so that quotas can be checked
+     * without summing every row. The owner is the notification package,
+     * or the UID without one. Triggers keep the counts current as progress
+     * is made, downloads fail, whose files are deleted then, and rows are
+     * deleted; progress checkpoints only touch the single row of their
+     * owner.
+     */
+    private void createUsageTable(SQLiteDatabase db) {
+        final String progressId = PROGRESS_TABLE + "." + Downloads.Impl._ID;
+        db.execSQL("DROP TABLE IF EXISTS " + USAGE_TABLE);
+        db.execSQL("CREATE TABLE " + USAGE_TABLE + "("
+                + COLUMN_OWNER + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_USAGE_BYTES + " INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("INSERT INTO " + USAGE_TABLE + " SELECT " + ownerOf("") + ", SUM("
+                + usageOf("") + ") FROM " + DOWNLOADS_WITH_ARCHIVE + " GROUP BY 1");
+
+        // Downloads get their progress row right after their wide row
+        final String ownerOfNew = "(SELECT " + ownerOf("") + " FROM " + DB_TABLE + " WHERE "
+                + Downloads.Impl._ID + " = NEW." + Downloads.Impl._ID + ")";
+        createUsageTrigger(db, "insert", "AFTER INSERT ON " + PROGRESS_TABLE,
+                ownerOfNew, usageOf("NEW."));
+        createUsageTrigger(db, "update", "AFTER UPDATE OF "
+                + Downloads.Impl.COLUMN_CURRENT_BYTES + ", " + Downloads.Impl.COLUMN_STATUS
+                + " ON " + PROGRESS_TABLE + " WHEN " + usageOf("NEW.") + " != "
+                + usageOf("OLD."), ownerOfNew, usageOf("NEW.") + " - " + usageOf("OLD."));
+        // Before the cleanup trigger drops the progress row
+        createUsageTrigger(db, "delete", "BEFORE DELETE ON " + DB_TABLE, ownerOf("OLD."),
+                "-IFNULL((SELECT " + usageOf(PROGRESS_TABLE + ".") + " FROM " + PROGRESS_TABLE
+                + " WHERE " + progressId + " = OLD." + Downloads.Impl._ID + "), 0)");
+        createUsageTrigger(db, "archive", "AFTER INSERT ON " + ARCHIVE_TABLE,
+                ownerOf("NEW."), usageOf("NEW."));
+        createUsageTrigger(db, "unarchive", "AFTER DELETE ON " + ARCHIVE_TABLE,
+                ownerOf("OLD."), "-" + usageOf("OLD."));
+    }
+
+    private void createUsageTrigger(SQLiteDatabase db, String name, String event,
+            String owner, String delta) {
+        final String trigger = USAGE_TABLE + "_" + name;
+        db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+        db.execSQL("CREATE TRIGGER " + trigger + " " + event + " BEGIN"
+                + " INSERT OR IGNORE INTO " + USAGE_TABLE + " (" + COLUMN_OWNER + ") VALUES ("
+                + owner + ");"
+                + " UPDATE " + USAGE_TABLE + " SET " + COLUMN_USAGE_BYTES + " = "
+                + COLUMN_USAGE_BYTES + " + (" + delta + ") WHERE " + COLUMN_OWNER + " = "
+                + owner + "; END");
+    }
+
+    /**
+     * Creates {@link #SUMMARY_TABLE}, counting the downloads of each owner
+     * in each status class with the bytes they have and still need, so that
+     * dashboards can read a handful of rows instead of every download.
+     * Archived downloads and those marked deleted are left out. Triggers
+     * move a download between classes as its status changes, and only
+     * touch the rows of its owner.
+     */
+    private void createSummaryTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + SUMMARY_TABLE);
+        db.execSQL("CREATE TABLE " + SUMMARY_TABLE + "("
+                + COLUMN_OWNER + " TEXT NOT NULL, "
+                + COLUMN_STATUS_CLASS + " INTEGER NOT NULL, "
+                + COLUMN_SUMMARY_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_SUMMARY_BYTES + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_SUMMARY_REMAINING + " INTEGER NOT NULL DEFAULT 0, "
+                + "PRIMARY KEY (" + COLUMN_OWNER + ", " + COLUMN_STATUS_CLASS + "))");
+        db.execSQL("INSERT INTO " + SUMMARY_TABLE + " SELECT " + ownerOf("") + ", "
+                + statusClassOf("%s") + ", COUNT(*), SUM(" + Downloads.Impl.COLUMN_CURRENT_BYTES
+                + "), SUM(" + remainingOf("%s") + ") FROM " + DOWNLOADS_VIEW + " WHERE "
+                + Downloads.Impl.COLUMN_DELETED + " = 0 GROUP BY 1, 2");
+
+        final String id = Downloads.Impl._ID;
+        final String deleted = Downloads.Impl.COLUMN_DELETED;
+        final String ownerOfNew = "(SELECT " + ownerOf("") + " FROM " + DB_TABLE + " WHERE "
+                + id + " = NEW." + id + ")";
+        final String visible = "(SELECT " + deleted + " FROM " + DB_TABLE + " WHERE " + id
+                + " = NEW." + id + ") = 0";
+        final String progressOfNew = "(SELECT %s FROM " + PROGRESS_TABLE + " WHERE " + id
+                + " = NEW." + id + ")";
+        final String progressOfOld = "(SELECT %s FROM " + PROGRESS_TABLE + " WHERE " + id
+                + " = OLD." + id + ")";
+        final String hasProgress = "EXISTS (SELECT 1 FROM " + PROGRESS_TABLE + " WHERE " + id
+                + " = %s." + id + ")";
+
+        // Downloads get their progress row right after their wide row
+        createSummaryTrigger(db, "insert", "AFTER INSERT ON " + PROGRESS_TABLE + " WHEN "
+                + visible, addToSummary(ownerOfNew, "NEW.%s", "+"));
+        createSummaryTrigger(db, "update", "AFTER UPDATE OF "
+                + Downloads.Impl.COLUMN_CURRENT_BYTES + ", " + Downloads.Impl.COLUMN_TOTAL_BYTES
+                + ", " + Downloads.Impl.COLUMN_STATUS + " ON " + PROGRESS_TABLE + " WHEN "
+                + visible, addToSummary(ownerOfNew, "OLD.%s", "-")
+                + addToSummary(ownerOfNew, "NEW.%s", "+"));
+        createSummaryTrigger(db, "hide", "AFTER UPDATE OF " + deleted + " ON " + DB_TABLE
+                + " WHEN OLD." + deleted + " = 0 AND NEW." + deleted + " != 0 AND "
+                + String.format(hasProgress, "NEW"),
+                addToSummary(ownerOf("NEW."), progressOfNew, "-"));
+        createSummaryTrigger(db, "unhide", "AFTER UPDATE OF " + deleted + " ON " + DB_TABLE
+                + " WHEN OLD." + deleted + " != 0 AND NEW." + deleted + " = 0 AND "
+                + String.format(hasProgress, "NEW"),
+                addToSummary(ownerOf("NEW."), progressOfNew, "+"));
+        // Before the cleanup trigger drops the progress row; archiving
+        // deletes the row as well
+        createSummaryTrigger(db, "delete", "BEFORE DELETE ON " + DB_TABLE + " WHEN OLD."
+                + deleted + " = 0 AND " + String.format(hasProgress, "OLD"),
+                addToSummary(ownerOf("OLD."), progressOfOld, "-"));
+    }
+
+    private void createSummaryTrigger(SQLiteDatabase db, String name, String event,
+            String statements) {
+        final String trigger = SUMMARY_TABLE + "_" + name;
+        db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+        db.execSQL("CREATE TRIGGER " + trigger + " " + event + " BEGIN" + statements + " END");
+    }
+
+    /**
+     * Trigger statements adding a download to, or with a {@code sign} of
+     * "-" removing it from, the summary row of its owner and status class.
+     *
+     * @param progress format of a reference to a progress column of the
+     *            download, such as "NEW.%s"
+     */
+    private static String addToSummary(String owner, String progress, String sign) {
+        final String statusClass = statusClassOf(progress);
+        // Rows only ever need creating when adding to them
+        final String insert = !"+".equals(sign) ? "" : " INSERT OR IGNORE INTO "
+                + SUMMARY_TABLE + " (" + COLUMN_OWNER + ", " + COLUMN_STATUS_CLASS
+                + ") VALUES (" + owner + ", " + statusClass + ");";
+        return insert + " UPDATE " + SUMMARY_TABLE + " SET "
+                + COLUMN_SUMMARY_COUNT + " = " + COLUMN_SUMMARY_COUNT + " " + sign + " 1, "
+                + COLUMN_SUMMARY_BYTES + " = " + COLUMN_SUMMARY_BYTES + " " + sign + " "
+                + String.format(progress, Downloads.Impl.COLUMN_CURRENT_BYTES) + ", "
+                + COLUMN_SUMMARY_REMAINING + " = " + COLUMN_SUMMARY_REMAINING + " " + sign + " "
+                + remainingOf(progress) + " WHERE " + COLUMN_OWNER + " = " + owner + " AND "
+                + COLUMN_STATUS_CLASS + " = " + statusClass + ";";
+    }
+
+    /**
+     * Expression mapping the status of a download to the STATUS_* flag of
+     * {@link DownloadManager} it is reported with.
+     */
+    private static String statusClassOf(String progress) {
+        return "(CASE " + String.format(progress, Downloads.Impl.COLUMN_STATUS)
+                + " WHEN " + Downloads.Impl.STATUS_PENDING
+                + " THEN " + DownloadManager.STATUS_PENDING
+                + " WHEN " + Downloads.Impl.STATUS_RUNNING
+                + " THEN " + DownloadManager.STATUS_RUNNING
+                + " WHEN " + Downloads.Impl.STATUS_PAUSED_BY_APP
+                + " THEN " + DownloadManager.STATUS_PAUSED
+                + " WHEN " + Downloads.Impl.STATUS_WAITING_TO_RETRY
+                + " THEN " + DownloadManager.STATUS_PAUSED
+                + " WHEN " + Downloads.Impl.STATUS_WAITING_FOR_NETWORK
+                + " THEN " + DownloadManager.STATUS_PAUSED
+                + " WHEN " + Downloads.Impl.STATUS_QUEUED_FOR_WIFI
+                + " THEN " + DownloadManager.STATUS_PAUSED
+                + " WHEN " + Downloads.Impl.STATUS_QUEUED_FOR_QUOTA
+                + " THEN " + DownloadManager.STATUS_PAUSED
+                + " WHEN " + Downloads.Impl.STATUS_SUCCESS
+                + " THEN " + DownloadManager.STATUS_SUCCESSFUL
+                + " ELSE " + DownloadManager.STATUS_FAILED + " END)";
+    }
+
+    /**
+     * Expression for the bytes a download still has to fetch, or 0 while
+     * its size is unknown.
+     */
+    private static String remainingOf(String progress) {
+        final String current = String.format(progress, Downloads.Impl.COLUMN_CURRENT_BYTES);
+        final String total = String.format(progress, Downloads.Impl.COLUMN_TOTAL_BYTES);
+        return "(CASE WHEN " + total + " > " + current + " THEN " + total + " - " + current
+                + " ELSE 0 END)";
+    }
+
+    /**
+     * Expression naming the owner of a download row, as kept in
+     * {@link #USAGE_TABLE}.
+     */
+    static String ownerOf(String row) {
+        return "IFNULL(" + row + Downloads.Impl.COLUMN_NOTIFICATION_PACKAGE + ", " + row
+                + Constants.UID + ")";
+    }
+
+    /**
+     * Expression for the bytes a download row holds: failed downloads have
+     * their file deleted.
+     */
+    static String usageOf(String row) {
+        final String status = row + Downloads.Impl.COLUMN_STATUS;
+        return "(CASE WHEN " + status + " >= 400 AND " + status + " < 600 THEN 0 ELSE "
+                + row + Downloads.Impl.COLUMN_CURRENT_BYTES + " END)";
+    }
+
+    private void createHeadersTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + Downloads.Impl.RequestHeaders.HEADERS_DB_TABLE);
+        db.execSQL("CREATE TABLE " + Downloads.Impl.RequestHeaders.HEADERS_DB_TABLE + "(" +
+                   "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                   Downloads.Impl.RequestHeaders.COLUMN_DOWNLOAD_ID + " INTEGER NOT NULL," +
+                   Downloads.Impl.RequestHeaders.COLUMN_HEADER + " TEXT NOT NULL," +
+                   Downloads.Impl.RequestHeaders.COLUMN_VALUE + " TEXT NOT NULL" +
+                   ");");
+    }
+}
@@ -30,13 +30,16 @@ import android.util.Log;
 import android.util.Pair;
 
 import com.limpoxe.downloads.utils.ConnectManager;
+import com.limpoxe.downloads.utils.GuardedBy;
 
 import java.io.CharArrayWriter;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -44,93 +47,242 @@ import java.util.concurrent.Future;
 import static com.limpoxe.downloads.Constants.TAG;
 
 /**
- * Details about a specific download. Fields should only be mutated by updating
- * from database query.
+ * Details about a specific download. While a {@link DownloadThread} runs, it
+ * owns the transfer state and publishes it here before pushing it to the
+ * provider, so this object is the source of truth for active downloads; other
+ * fields are mutated by updating from database query, and control changes made
+ * in this process are applied directly.
  */
 public class DownloadInfo {
-    // TODO: move towards these in-memory objects being sources of truth, and
-    // periodically pushing to provider.
+    /**
+     * Downloads tracked by the running {@link DownloadService}, so that pause
+     * and delete requests reach their threads without waiting for a pass over
+     * the database.
+     */
+    @GuardedBy("sLiveDownloads")
+    private static final Map<Long, DownloadInfo> sLiveDownloads = new HashMap<Long, DownloadInfo>();
 
     public static class Reader {
-        private ContentResolver mResolver;
+        private DownloadsDao mDao;
         private Cursor mCursor;
 
-        public Reader(ContentResolver resolver, Cursor cursor) {
-            mResolver = resolver;
+        /** Column positions, resolved once for every row of the cursor */
+        private final int mIdIndex;
+        private final int mNoIntegrityIndex;
+        private final int mFileNameHintIndex;
+        private final int mDestinationIndex;
+        private final int mVisibilityIndex;
+        private final int mNotificationPackageIndex;
+        private final int mNotificationClassIndex;
+        private final int mNotificationExtrasIndex;
+        private final int mCookieDataIndex;
+        private final int mUserAgentIndex;
+        private final int mRefererIndex;
+        private final int mUidIndex;
+        private final int mMediaScannedIndex;
+        private final int mMediaProviderUriIndex;
+        private final int mIsPublicApiIndex;
+        private final int mAllowedNetworkTypesIndex;
+        private final int mAllowRoamingIndex;
+        private final int mAllowMeteredIndex;
+        private final int mTitleIndex;
+        private final int mDescriptionIndex;
+        private final int mBypassRecommendedSizeLimitIndex;
+        private final int mSparseIndex;
+        private final int mRangeStartIndex;
+        private final int mRangeEndIndex;
+        private final int mZipEntriesIndex;
+        private final int mHashAlgorithmIndex;
+        private final int mHashBlockSizeIndex;
+        private final int mQuotaIndex;
+        private final int mQueueOverQuotaIndex;
+        private final int mControlIndex;
+        private final int mDeletedIndex;
+        private final int mLastModificationIndex;
+        private final int mUriIndex;
+        private final int mDataIndex;
+        private final int mMimeTypeIndex;
+        private final int mStatusIndex;
+        private final int mFailedConnectionsIndex;
+        private final int mRetryAfterIndex;
+        private final int mTotalBytesIndex;
+        private final int mCurrentBytesIndex;
+        private final int mETagIndex;
+
+        public Reader(DownloadsDao dao, Cursor cursor) {
+            mDao = dao;
             mCursor = cursor;
+            mIdIndex = cursor.getColumnIndexOrThrow(Downloads.Impl._ID);
+            mNoIntegrityIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_NO_INTEGRITY);
+            mFileNameHintIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_FILE_NAME_HINT);
+            mDestinationIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_DESTINATION);
+            mVisibilityIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_VISIBILITY);
+            mNotificationPackageIndex =
+                    cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_NOTIFICATION_PACKAGE);
+            mNotificationClassIndex =
+                    cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_NOTIFICATION_CLASS);
+            mNotificationExtrasIndex =
+                    cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_NOTIFICATION_EXTRAS);
+            mCookieDataIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_COOKIE_DATA);
+            mUserAgentIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_USER_AGENT);
+            mRefererIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_REFERER);
+            mUidIndex = cursor.getColumnIndexOrThrow(Constants.UID);
+            mMediaScannedIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_MEDIA_SCANNED);
+            mMediaProviderUriIndex =
+                    cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_MEDIAPROVIDER_URI);
+            mIsPublicApiIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_IS_PUBLIC_API);
+            mAllowedNetworkTypesIndex =
+                    cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_ALLOWED_NETWORK_TYPES);
+            mAllowRoamingIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_ALLOW_ROAMING);
+            mAllowMeteredIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_ALLOW_METERED);
+            mTitleIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_TITLE);
+            mDescriptionIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_DESCRIPTION);
+            mBypassRecommendedSizeLimitIndex = cursor.getColumnIndexOrThrow(
+                    Downloads.Impl.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT);
+            mSparseIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_SPARSE);
+            mRangeStartIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_RANGE_START);
+            mRangeEndIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_RANGE_END);
+            mZipEntriesIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_ZIP_ENTRIES);
+            mHashAlgorithmIndex =
+                    cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_HASH_ALGORITHM);
+            mHashBlockSizeIndex =
+                    cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_HASH_BLOCK_SIZE);
+            mQuotaIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_QUOTA);
+            mQueueOverQuotaIndex =
+                    cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_QUEUE_OVER_QUOTA);
+            mControlIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_CONTROL);
+            mDeletedIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_DELETED);
+            mLastModificationIndex =
+                    cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_LAST_MODIFICATION);
+            mUriIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_URI);
+            mDataIndex = cursor.getColumnIndexOrThrow(Downloads.Impl._DATA);
+            mMimeTypeIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_MIME_TYPE);
+            mStatusIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_STATUS);
+            mFailedConnectionsIndex =
+                    cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_FAILED_CONNECTIONS);
+            mRetryAfterIndex = cursor.getColumnIndexOrThrow(Constants.RETRY_AFTER_X_REDIRECT_COUNT);
+            mTotalBytesIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_TOTAL_BYTES);
+            mCurrentBytesIndex = cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_CURRENT_BYTES);
+            mETagIndex = cursor.getColumnIndexOrThrow(Constants.ETAG);
         }
 
         public DownloadInfo newDownloadInfo(
                 Context context, DownloadNotifier notifier) {
+            final DownloadInfo info = newDownloadInfoWithoutHeaders(context, notifier);
+            readRequestHeaders(Collections.singletonList(info));
+            return info;
+        }
+
+        /**
+         * Create a download from the current row, leaving its request headers
+         * to a later {@link #readRequestHeaders(List)} covering many downloads.
+         */
+        public DownloadInfo newDownloadInfoWithoutHeaders(
+                Context context, DownloadNotifier notifier) {
             final DownloadInfo info = new DownloadInfo(context, notifier);
             updateFromDatabase(info);
-            readRequestHeaders(info);
             return info;
         }
 
         public void updateFromDatabase(DownloadInfo info) {
-            info.mId = getLong(Downloads.Impl._ID);
-            info.mUri = getString(Downloads.Impl.COLUMN_URI);
-            info.mNoIntegrity = getInt(Downloads.Impl.COLUMN_NO_INTEGRITY) == 1;
-            info.mHint = getString(Downloads.Impl.COLUMN_FILE_NAME_HINT);
-            info.mFileName = getString(Downloads.Impl._DATA);
-            info.mMimeType = StorageUtils.normalizeMimeType(getString(Downloads.Impl.COLUMN_MIME_TYPE));
-            info.mDestination = getInt(Downloads.Impl.COLUMN_DESTINATION);
-            info.mVisibility = getInt(Downloads.Impl.COLUMN_VISIBILITY);
-            info.mStatus = getInt(Downloads.Impl.COLUMN_STATUS);
-            info.mNumFailed = getInt(Downloads.Impl.COLUMN_FAILED_CONNECTIONS);
-            int retryRedirect = getInt(Constants.RETRY_AFTER_X_REDIRECT_COUNT);
-            info.mRetryAfter = retryRedirect & 0xfffffff;
-            info.mLastMod = getLong(Downloads.Impl.COLUMN_LAST_MODIFICATION);
-            info.mPackage = getString(Downloads.Impl.COLUMN_NOTIFICATION_PACKAGE);
-            info.mClass = getString(Downloads.Impl.COLUMN_NOTIFICATION_CLASS);
-            info.mExtras = getString(Downloads.Impl.COLUMN_NOTIFICATION_EXTRAS);
-            info.mCookies = getString(Downloads.Impl.COLUMN_COOKIE_DATA);
-            info.mUserAgent = getString(Downloads.Impl.COLUMN_USER_AGENT);
-            info.mReferer = getString(Downloads.Impl.COLUMN_REFERER);
-            info.mTotalBytes = getLong(Downloads.Impl.COLUMN_TOTAL_BYTES);
-            info.mCurrentBytes = getLong(Downloads.Impl.COLUMN_CURRENT_BYTES);
-            info.mETag = getString(Constants.ETAG);
-            info.mUid = getInt(Constants.UID);
-            info.mMediaScanned = getInt(Downloads.Impl.COLUMN_MEDIA_SCANNED);
-            info.mDeleted = getInt(Downloads.Impl.COLUMN_DELETED) == 1;
-            info.mMediaProviderUri = getString(Downloads.Impl.COLUMN_MEDIAPROVIDER_URI);
-            info.mIsPublicApi = getInt(Downloads.Impl.COLUMN_IS_PUBLIC_API) != 0;
-            info.mAllowedNetworkTypes = getInt(Downloads.Impl.COLUMN_ALLOWED_NETWORK_TYPES);
-            info.mAllowRoaming = getInt(Downloads.Impl.COLUMN_ALLOW_ROAMING) != 0;
-            info.mAllowMetered = getInt(Downloads.Impl.COLUMN_ALLOW_METERED) != 0;
-            info.mTitle = getString(Downloads.Impl.COLUMN_TITLE);
-            info.mDescription = getString(Downloads.Impl.COLUMN_DESCRIPTION);
-            info.mBypassRecommendedSizeLimit =
-                    getInt(Downloads.Impl.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT);
-
-            synchronized (this) {
-                info.mControl = getInt(Downloads.Impl.COLUMN_CONTROL);
+            info.mId = getLong(mIdIndex);
+            info.mNoIntegrity = getInt(mNoIntegrityIndex) == 1;
+            info.mHint = getString(mFileNameHintIndex);
+            info.mDestination = getInt(mDestinationIndex);
+            info.mVisibility = getInt(mVisibilityIndex);
+            info.mPackage = getString(mNotificationPackageIndex);
+            info.mClass = getString(mNotificationClassIndex);
+            info.mExtras = getString(mNotificationExtrasIndex);
+            info.mCookies = getString(mCookieDataIndex);
+            info.mUserAgent = getString(mUserAgentIndex);
+            info.mReferer = getString(mRefererIndex);
+            info.mUid = getInt(mUidIndex);
+            info.mMediaScanned = getInt(mMediaScannedIndex);
+            info.mMediaProviderUri = getString(mMediaProviderUriIndex);
+            info.mIsPublicApi = getInt(mIsPublicApiIndex) != 0;
+            info.mAllowedNetworkTypes = getInt(mAllowedNetworkTypesIndex);
+            info.mAllowRoaming = getInt(mAllowRoamingIndex) != 0;
+            info.mAllowMetered = getInt(mAllowMeteredIndex) != 0;
+            info.mTitle = getString(mTitleIndex);
+            info.mDescription = getString(mDescriptionIndex);
+            info.mBypassRecommendedSizeLimit = getInt(mBypassRecommendedSizeLimitIndex);
+            info.mSparse = getInt(mSparseIndex);
+            info.mRangeStart = getLong(mRangeStartIndex);
+            info.mRangeEnd = getLong(mRangeEndIndex);
+            info.mZipEntries = getString(mZipEntriesIndex);
+            info.mHashAlgorithm = getString(mHashAlgorithmIndex);
+            info.mHashBlockSize = getInt(mHashBlockSizeIndex);
+            info.mQuota = getLong(mQuotaIndex);
+            info.mQueueOverQuota = getInt(mQueueOverQuotaIndex) != 0;
+
+            synchronized (info) {
+                info.mControl = getInt(mControlIndex);
+                info.mDeleted = getInt(mDeletedIndex) == 1;
+
+                // A running thread owns the transfer state and publishes it
+                // here directly, so the row can only lag behind. Once the
+                // thread is done, skip rows read before its last write.
+                final long lastMod = getLong(mLastModificationIndex);
+                if (!info.isTaskActive() && lastMod >= info.mLastMod) {
+                    info.mUri = getString(mUriIndex);
+                    info.mFileName = getString(mDataIndex);
+                    info.mMimeType = StorageUtils.normalizeMimeType(
+                            getString(mMimeTypeIndex));
+                    info.mStatus = getInt(mStatusIndex);
+                    info.mNumFailed = getInt(mFailedConnectionsIndex);
+                    int retryRedirect = getInt(mRetryAfterIndex);
+                    info.mRetryAfter = retryRedirect & 0xfffffff;
+                    info.mLastMod = lastMod;
+                    info.mTotalBytes = getLong(mTotalBytesIndex);
+                    info.mCurrentBytes = getLong(mCurrentBytesIndex);
+                    info.mETag = getString(mETagIndex);
+                }
             }
         }
 
-        private void readRequestHeaders(DownloadInfo info) {
-            info.mRequestHeaders.clear();
-            Uri headerUri = Uri.withAppendedPath(
-                    info.getAllDownloadsUri(), Downloads.Impl.RequestHeaders.URI_SEGMENT);
-            Cursor cursor = mResolver.query(headerUri, null, null, null, null);
-            try {
-                int headerIndex =
-                        cursor.getColumnIndexOrThrow(Downloads.Impl.RequestHeaders.COLUMN_HEADER);
-                int valueIndex =
-                        cursor.getColumnIndexOrThrow(Downloads.Impl.RequestHeaders.COLUMN_VALUE);
-                for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                    addHeader(info, cursor.getString(headerIndex), cursor.getString(valueIndex));
-                }
-            } finally {
-                cursor.close();
+        /**
+         * Load the request headers of the given downloads, with one query for
+         * every {@link DownloadManager#MAX_IDS_PER_STATEMENT} of them.
+         */
+        public void readRequestHeaders(List<DownloadInfo> infos) {
+            final Map<Long, DownloadInfo> byId = new HashMap<Long, DownloadInfo>();
+            for (DownloadInfo info : infos) {
+                info.mRequestHeaders.clear();
+                byId.put(info.mId, info);
             }
 
-            if (info.mCookies != null) {
-                addHeader(info, "Cookie", info.mCookies);
+            for (int start = 0; start < infos.size();
+                    start += DownloadManager.MAX_IDS_PER_STATEMENT) {
+                final int end = Math.min(start + DownloadManager.MAX_IDS_PER_STATEMENT,
+                        infos.size());
+                final long[] ids = new long[end - start];
+                for (int i = start; i < end; i++) {
+                    ids[i - start] = infos.get(i).mId;
+                }
+                Cursor cursor = mDao.queryRequestHeaders(ids);
+                try {
+                    int idIndex = cursor.getColumnIndexOrThrow(
+                            Downloads.Impl.RequestHeaders.COLUMN_DOWNLOAD_ID);
+                    int headerIndex = cursor.getColumnIndexOrThrow(
+                            Downloads.Impl.RequestHeaders.COLUMN_HEADER);
+                    int valueIndex = cursor.getColumnIndexOrThrow(
+                            Downloads.Impl.RequestHeaders.COLUMN_VALUE);
+                    while (cursor.moveToNext()) {
+                        addHeader(byId.get(cursor.getLong(idIndex)),
+                                cursor.getString(headerIndex), cursor.getString(valueIndex));
+                    }
+                } finally {
+                    cursor.close();
+                }
             }
-            if (info.mReferer != null) {
-                addHeader(info, "Referer", info.mReferer);
+
+            for (DownloadInfo info : infos) {
+                if (info.mCookies != null) {
+                    addHeader(info, "Cookie", info.mCookies);
+                }
+                if (info.mReferer != null) {
+                    addHeader(info, "Referer", info.mReferer);
+                }
             }
         }
 
@@ -138,18 +290,17 @@ public class DownloadInfo {
             info.mRequestHeaders.add(Pair.create(header, value));
         }
 
-        private String getString(String column) {
-            int index = mCursor.getColumnIndexOrThrow(column);
+        private String getString(int index) {
             String s = mCursor.getString(index);
             return (TextUtils.isEmpty(s)) ? null : s;
         }
 
-        private Integer getInt(String column) {
-            return mCursor.getInt(mCursor.getColumnIndexOrThrow(column));
+        private int getInt(int index) {
+            return mCursor.getInt(index);
         }
 
-        private Long getLong(String column) {
-            return mCursor.getLong(mCursor.getColumnIndexOrThrow(column));
+        private long getLong(int index) {
+            return mCursor.getLong(index);
         }
     }
 
@@ -237,6 +388,14 @@ public class DownloadInfo {
     public String mTitle;
     public String mDescription;
     public int mBypassRecommendedSizeLimit;
+    public int mSparse;
+    public long mRangeStart;
+    public long mRangeEnd;
+    public String mZipEntries;
+    public String mHashAlgorithm;
+    public int mHashBlockSize;
+    public long mQuota;
+    public boolean mQueueOverQuota;
 
     public int mFuzz;
 
@@ -259,10 +418,88 @@ public class DownloadInfo {
         mFuzz = Helpers.sRandom.nextInt(1001);
     }
 
+    static void register(DownloadInfo info) {
+        synchronized (sLiveDownloads) {
+            sLiveDownloads.put(info.mId, info);
+        }
+    }
+
+    static void unregister(DownloadInfo info) {
+        synchronized (sLiveDownloads) {
+            if (sLiveDownloads.get(info.mId) == info) {
+                sLiveDownloads.remove(info.mId);
+            }
+        }
+    }
+
+    private static DownloadInfo getLive(long id) {
+        synchronized (sLiveDownloads) {
+            return sLiveDownloads.get(id);
+        }
+    }
+
+    /**
+     * Apply a control change already written to the provider to any of the
+     * given downloads that are tracked in memory.
+     */
+    static void applyControl(long[] ids, int control) {
+        for (long id : ids) {
+            final DownloadInfo info = getLive(id);
+            if (info != null) {
+                synchronized (info) {
+                    info.mControl = control;
+                }
+            }
+        }
+    }
+
+    /**
+     * Mark the given downloads deleted in memory, stopping their threads at the
+     * next check. The service still cleans up once it sees the rows.
+     */
+    static void applyDeleted(long[] ids) {
+        for (long id : ids) {
+            final DownloadInfo info = getLive(id);
+            if (info != null) {
+                synchronized (info) {
+                    info.mDeleted = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether a {@link DownloadThread} has been submitted for this
+     * download and hasn't finished yet.
+     */
+    public boolean isTaskActive() {
+        synchronized (this) {
+            return mSubmittedTask != null && !mSubmittedTask.isDone();
+        }
+    }
+
     public Collection<Pair<String, String>> getHeaders() {
         return Collections.unmodifiableList(mRequestHeaders);
     }
 
+    /**
+     * Returns whether only part of the remote file was requested.
+     */
+    public boolean hasRange() {
+        return mRangeStart > 0 || mRangeEnd != -1;
+    }
+
+    /**
+     * Returns the ZIP entries to extract from the remote archive, or null when
+     * the whole file should be downloaded.
+     */
+    public String[] getZipEntries() {
+        if (TextUtils.isEmpty(mZipEntries)) {
+            return null;
+        }
+        return mZipEntries.split("\\n");
+    }
+
     public String getUserAgent() {
         if (mUserAgent != null) {
             return mUserAgent;
@@ -324,6 +561,10 @@ public class DownloadInfo {
             // the download is paused, so it's not going to start
             return false;
         }
+        if (mSparse == Downloads.Impl.SPARSE_ON_DEMAND) {
+            // blocks are only fetched as readers touch them
+            return false;
+        }
         switch (mStatus) {
             case 0: // status hasn't been initialized yet, this is a new download
             case Downloads.Impl.STATUS_PENDING: // download is explicit marked as ready to start
@@ -335,6 +576,9 @@ public class DownloadInfo {
             case Downloads.Impl.STATUS_QUEUED_FOR_WIFI:
                 return checkCanUseNetwork(mTotalBytes) == NetworkState.OK;
 
+            case Downloads.Impl.STATUS_QUEUED_FOR_QUOTA:
+                return isWithinQuota(mTotalBytes, mCurrentBytes);
+
             case Downloads.Impl.STATUS_WAITING_TO_RETRY:
                 // download was waiting for a delayed restart
                 final long now = System.currentTimeMillis();
@@ -371,6 +615,32 @@ public class DownloadInfo {
         return false;
     }
 
+    /**
+     * Returns the owner that this download's bytes are accounted to: its
+     * notification package, or its UID when it has none.
+     */
+    public String getOwner() {
+        return (mPackage != null) ? mPackage : String.valueOf(mUid);
+    }
+
+    /**
+     * Returns whether this download fits in its quota once complete, given
+     * what its owner's other downloads hold and still have to fetch.
+     * Downloads of unknown size fit while what they fetched so far leaves
+     * room under the quota.
+     */
+    public boolean isWithinQuota(long totalBytes, long currentBytes) {
+        if (mQuota < 0) {
+            return true;
+        }
+        final long others = DownloadsDao.getInstance(mContext)
+                .getOwnerCommittedBytes(getOwner(), mId);
+        if (totalBytes <= 0) {
+            return others + currentBytes < mQuota;
+        }
+        return others + Math.max(totalBytes, currentBytes) <= mQuota;
+    }
+
     /**
      * Returns whether this download is allowed to use the network.
      */
@@ -445,13 +715,13 @@ public class DownloadInfo {
     public boolean startDownloadIfReady(ExecutorService executor) {
         synchronized (this) {
             final boolean isReady = isReadyToDownload();
-            final boolean isActive = mSubmittedTask != null && !mSubmittedTask.isDone();
+            final boolean isActive = isTaskActive();
             if (isReady && !isActive) {
                 if (mStatus != Downloads.Impl.STATUS_RUNNING) {
                     mStatus = Downloads.Impl.STATUS_RUNNING;
                     ContentValues values = new ContentValues();
                     values.put(Downloads.Impl.COLUMN_STATUS, mStatus);
-                    mContext.getContentResolver().update(getAllDownloadsUri(), values, null, null);
+                    DownloadsDao.getInstance(mContext).update(mId, values, false, false);
                 }
 
                 mTask = new DownloadThread(mContext, mNotifier, this);
@@ -535,24 +805,4 @@ public class DownloadInfo {
     void notifyPauseDueToSize(boolean isWifiRequired) {
         Log.e("notifyPauseDueToSize", getAllDownloadsUri() + " isWifiRequired = " + isWifiRequired);
     }
-
-    /**
-     * Query and return status of requested download.
-     */
-    public static int queryDownloadStatus(ContentResolver resolver, long id) {
-        final Cursor cursor = resolver.query(
-                ContentUris.withAppendedId(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, id),
-                new String[] { Downloads.Impl.COLUMN_STATUS }, null, null, null);
-        try {
-            if (cursor.moveToFirst()) {
-                return cursor.getInt(0);
-            } else {
-                // TODO: increase strictness of value returned for unknown
-                // downloads; this is safe default for now.
-                return Downloads.Impl.STATUS_PENDING;
-            }
-        } finally {
-            cursor.close();
-        }
-    }
 }
@@ -16,26 +16,41 @@
 
 package com.limpoxe.downloads;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
 import android.provider.MediaStore.Images;
 import android.text.TextUtils;
 import android.util.Pair;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class DownloadManager {
 
@@ -226,6 +241,12 @@ public class DownloadManager {
 
     public final static int ERROR_BLOCKED = 1010;
 
+    /**
+     * Value of {@link #COLUMN_REASON} when the download would take its owner
+     * over the quota set with {@link Request#setQuota(long, boolean)}.
+     */
+    public final static int ERROR_QUOTA_EXCEEDED = 1011;
+
     /**
      * Value of {@link #COLUMN_REASON} when the download is paused because some network error
      * occurred and the download manager is waiting before retrying the request.
@@ -249,6 +270,12 @@ public class DownloadManager {
      */
     public final static int PAUSED_UNKNOWN = 4;
 
+    /**
+     * Value of {@link #COLUMN_REASON} when the download would take its owner
+     * over its quota and is waiting for other downloads to free space.
+     */
+    public final static int PAUSED_QUEUED_FOR_QUOTA = 5;
+
     public final static String ACTION_DOWNLOAD_COMPLETE = "com.limpoxe.downloads.action.DOWNLOAD_COMPLETE";
 
     public final static String ACTION_NOTIFICATION_CLICKED =
@@ -297,6 +324,17 @@ public class DownloadManager {
         "'placeholder' AS " + COLUMN_REASON
     };
 
+    /** Entry of {@link #UNDERLYING_COLUMNS} behind each column of query results */
+    private static final HashMap<String, String> sUnderlyingColumns =
+            new HashMap<String, String>();
+
+    static {
+        for (String column : UNDERLYING_COLUMNS) {
+            final int alias = column.lastIndexOf(" AS ");
+            sUnderlyingColumns.put((alias != -1) ? column.substring(alias + 4) : column, column);
+        }
+    }
+
     /**
      * This class contains all the information necessary to request a new download. The URI is the
      * only required parameter.
@@ -339,6 +377,15 @@ public class DownloadManager {
         private boolean mIsVisibleInDownloadsUi = true;
         private boolean mScannable = false;
         private boolean mUseSystemCache = false;
+        private int mSparse = Downloads.Impl.SPARSE_NONE;
+        private long mRangeStart = 0;
+        private long mRangeEnd = -1;
+        private String mZipEntries;
+        private String mHashAlgorithm;
+        private int mHashBlockSize;
+        private byte[] mBlockHashes;
+        private long mQuota = -1;
+        private boolean mQueueOverQuota = false;
         /** if a file is designated as a MediaScanner scannable file, the following value is
          * stored in the database column {@link Downloads.Impl#COLUMN_MEDIA_SCANNED}.
          */
@@ -657,6 +704,145 @@ public class DownloadManager {
             return this;
         }
 
+        /**
+         * Fetch this download lazily by read position instead of front to
+         * back. Nothing is transferred until the file is read through
+         * {@link DownloadManager#openSparseFile(long)}, which fetches the
+         * blocks under each read with HTTP range requests, reading ahead a
+         * little. The server must support byte ranges.
+         *
+         * @param fillWhenIdle if true, the remaining blocks are fetched in the
+         *            background whenever no other downloads are running, and
+         *            the download completes once every block is present
+         * @return this object
+         */
+        public Request setSparse(boolean fillWhenIdle) {
+            mSparse = fillWhenIdle ? Downloads.Impl.SPARSE_FILL_WHEN_IDLE
+                    : Downloads.Impl.SPARSE_ON_DEMAND;
+            return this;
+        }
+
+        /**
+         * Download only the given byte range of the remote file, such as an
+         * archive directory or a media index. The range is sent with the first
+         * request and with every resume, and partial responses are checked
+         * against it. Progress and total size describe the range only.
+         *
+         * @param start offset of the first byte to download
+         * @param end offset of the last byte to download, inclusive, or -1 to
+         *            download through the end of the remote file
+         * @return this object
+         */
+        public Request setRange(long start, long end) {
+            if (start < 0) {
+                throw new IllegalArgumentException("Invalid range start: " + start);
+            }
+            if (end != -1 && end < start) {
+                throw new IllegalArgumentException("Invalid range end: " + end);
+            }
+            mRangeStart = start;
+            mRangeEnd = end;
+            return this;
+        }
+
+        /**
+         * Treat the remote file as a ZIP archive and extract only the named
+         * entries, fetching the central directory and each entry's data with
+         * HTTP range requests instead of downloading the whole archive. The
+         * server must support byte ranges.
+         * <p>
+         * Entries are written under the destination, which is then treated as
+         * a directory; {@link DownloadManager#COLUMN_LOCAL_FILENAME} reports
+         * that directory. Progress and total size count the compressed bytes of
+         * the requested entries. Only stored and deflated entries are supported,
+         * and each one is checked against its CRC-32.
+         *
+         * @param names full paths of the entries within the archive
+         * @return this object
+         */
+        public Request setZipEntries(String... names) {
+            if (names == null || names.length == 0) {
+                throw new IllegalArgumentException("No ZIP entries given");
+            }
+            final StringBuilder builder = new StringBuilder();
+            for (String name : names) {
+                if (TextUtils.isEmpty(name) || name.indexOf('\n') != -1) {
+                    throw new IllegalArgumentException("Invalid ZIP entry name: " + name);
+                }
+                if (builder.length() > 0) {
+                    builder.append('\n');
+                }
+                builder.append(name);
+            }
+            mZipEntries = builder.toString();
+            return this;
+        }
+
+        /**
+         * Attach a hash manifest covering every block of the file. Blocks are
+         * checked as they arrive, and any block that doesn't match is fetched
+         * again by range instead of restarting the whole download. Blocks
+         * that keep failing fail the download with
+         * {@link DownloadManager#ERROR_HTTP_DATA_ERROR}.
+         * <p>
+         * Corrupt blocks of downloads limited with {@link #setRange(long, long)}
+         * are reported but not fetched again. The manifest is ignored for
+         * sparse downloads and ZIP entry extraction.
+         *
+         * @param algorithm {@link java.security.MessageDigest} algorithm of
+         *            each hash, such as "SHA-256"
+         * @param blockSize size in bytes of each block; the last block may be
+         *            shorter
+         * @param hashes digest of every block, concatenated in order
+         * @return this object
+         */
+        public Request setBlockHashes(String algorithm, int blockSize, byte[] hashes) {
+            final int digestLength;
+            try {
+                digestLength = MessageDigest.getInstance(algorithm).getDigestLength();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Unknown hash algorithm: " + algorithm);
+            }
+            if (blockSize <= 0) {
+                throw new IllegalArgumentException("Invalid block size: " + blockSize);
+            }
+            if (hashes == null || hashes.length == 0 || digestLength == 0
+                    || hashes.length % digestLength != 0) {
+                throw new IllegalArgumentException("Hashes must be a whole number of "
+                        + algorithm + " digests");
+            }
+            mHashAlgorithm = algorithm;
+            mHashBlockSize = blockSize;
+            mBlockHashes = hashes.clone();
+            return this;
+        }
+
+        /**
+         * Limit the bytes held by all downloads of this app, this one
+         * included, to the given quota. Downloads that fail or are removed
+         * stop counting against it. The check is made before any bytes are
+         * transferred, and again once the size is known, counting what the
+         * app's running downloads still have to fetch; downloads of unknown
+         * size are checked again as they progress and stopped once they
+         * cross the quota.
+         * {@link DownloadManager#getUsageBytes()} reports the current usage.
+         *
+         * @param maxBytes the quota in bytes, or -1 for none
+         * @param queueWhenOver if true, a download over quota is paused with
+         *            {@link DownloadManager#PAUSED_QUEUED_FOR_QUOTA} until
+         *            enough space is freed; otherwise it fails with
+         *            {@link DownloadManager#ERROR_QUOTA_EXCEEDED}
+         * @return this object
+         */
+        public Request setQuota(long maxBytes, boolean queueWhenOver) {
+            if (maxBytes < -1) {
+                throw new IllegalArgumentException("Invalid quota: " + maxBytes);
+            }
+            mQuota = maxBytes;
+            mQueueOverQuota = queueWhenOver;
+            return this;
+        }
+
         /**
          * @return ContentValues to be passed to DownloadProvider.insert()
          */
@@ -691,6 +877,23 @@ public class DownloadManager {
             values.put(Downloads.Impl.COLUMN_ALLOW_ROAMING, mRoamingAllowed);
             values.put(Downloads.Impl.COLUMN_ALLOW_METERED, mMeteredAllowed);
             values.put(Downloads.Impl.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI, mIsVisibleInDownloadsUi);
+            if (mSparse != Downloads.Impl.SPARSE_NONE) {
+                values.put(Downloads.Impl.COLUMN_SPARSE, mSparse);
+            }
+            if (mRangeStart != 0 || mRangeEnd != -1) {
+                values.put(Downloads.Impl.COLUMN_RANGE_START, mRangeStart);
+                values.put(Downloads.Impl.COLUMN_RANGE_END, mRangeEnd);
+            }
+            putIfNonNull(values, Downloads.Impl.COLUMN_ZIP_ENTRIES, mZipEntries);
+            if (mBlockHashes != null) {
+                values.put(Downloads.Impl.COLUMN_HASH_ALGORITHM, mHashAlgorithm);
+                values.put(Downloads.Impl.COLUMN_HASH_BLOCK_SIZE, mHashBlockSize);
+                values.put(Downloads.Impl.COLUMN_BLOCK_HASHES, mBlockHashes);
+            }
+            if (mQuota != -1) {
+                values.put(Downloads.Impl.COLUMN_QUOTA, mQuota);
+                values.put(Downloads.Impl.COLUMN_QUEUE_OVER_QUOTA, mQueueOverQuota);
+            }
 
             return values;
         }
@@ -732,6 +935,11 @@ public class DownloadManager {
         private String mOrderByColumn = Downloads.Impl.COLUMN_LAST_MODIFICATION;
         private int mOrderDirection = ORDER_DESCENDING;
         private boolean mOnlyIncludeVisibleInDownloadsUi = false;
+        private boolean mIncludeArchived = false;
+        private int mPageSize = 0;
+        private boolean mHasPageAfter = false;
+        private long mPageAfterKey;
+        private long mPageAfterId;
 
         /**
          * Include only the downloads with the given IDs.
@@ -765,6 +973,62 @@ public class DownloadManager {
             return this;
         }
 
+        /**
+         * Controls whether this query includes downloads moved to the archive,
+         * which happens to downloads finished longer ago than the age set with
+         * {@link DownloadManager#setArchiveAge(long)}. Archived downloads can
+         * still be opened and removed, but no longer restarted.
+         * @param value if true, this query will also include archived downloads;
+         *            if false (the default), it will only include the others.
+         * @return this object
+         */
+        public Query setIncludeArchived(boolean value) {
+            mIncludeArchived = value;
+            return this;
+        }
+
+        /**
+         * Return at most the given number of downloads, in sort order. Pass
+         * the sort column and ID of the last download returned to
+         * {@link #setPageAfter(long, long)} to fetch the next page.
+         * @param pageSize the number of downloads per page, or 0 for all
+         * @return this object
+         */
+        public Query setPageSize(int pageSize) {
+            if (pageSize < 0) {
+                throw new IllegalArgumentException("Invalid page size: " + pageSize);
+            }
+            mPageSize = pageSize;
+            return this;
+        }
+
+        /**
+         * Start at the download following the given one in sort order. The
+         * position is found through the index on the sort column instead of
+         * by skipping rows, so each page costs the same however deep it is,
+         * and downloads added or removed meanwhile don't shift the pages.
+         * Downloads that share a sort value are ordered by ID.
+         * @param sortKey the value of the sort column, by default
+         *            {@link #COLUMN_LAST_MODIFIED_TIMESTAMP}, of the last
+         *            download of the previous page
+         * @param id the {@link #COLUMN_ID} of that download
+         * @return this object
+         */
+        public Query setPageAfter(long sortKey, long id) {
+            mHasPageAfter = true;
+            mPageAfterKey = sortKey;
+            mPageAfterId = id;
+            return this;
+        }
+
+        /**
+         * Return the result column holding the sort key of each download.
+         */
+        String getSortColumn() {
+            return mOrderByColumn.equals(Downloads.Impl.COLUMN_TOTAL_BYTES)
+                    ? COLUMN_TOTAL_SIZE_BYTES : COLUMN_LAST_MODIFIED_TIMESTAMP;
+        }
+
         /**
          * Change the sort order of the returned Cursor.
          *
@@ -798,6 +1062,17 @@ public class DownloadManager {
          */
         Cursor runQuery(ContentResolver resolver, String[] projection, Uri baseUri) {
             Uri uri = baseUri;
+            if (mIncludeArchived) {
+                uri = uri.buildUpon()
+                        .appendQueryParameter(DownloadProvider.QUERY_PARAM_ARCHIVED, "true")
+                        .build();
+            }
+            if (mPageSize > 0) {
+                uri = uri.buildUpon()
+                        .appendQueryParameter(DownloadProvider.QUERY_PARAM_LIMIT,
+                                String.valueOf(mPageSize))
+                        .build();
+            }
             List<String> selectionParts = new ArrayList<String>();
             String[] selectionArgs = null;
 
@@ -819,6 +1094,7 @@ public class DownloadManager {
                     parts.add(statusClause("=", Downloads.Impl.STATUS_WAITING_TO_RETRY));
                     parts.add(statusClause("=", Downloads.Impl.STATUS_WAITING_FOR_NETWORK));
                     parts.add(statusClause("=", Downloads.Impl.STATUS_QUEUED_FOR_WIFI));
+                    parts.add(statusClause("=", Downloads.Impl.STATUS_QUEUED_FOR_QUOTA));
                 }
                 if ((mStatusFlags & STATUS_SUCCESSFUL) != 0) {
                     parts.add(statusClause("=", Downloads.Impl.STATUS_SUCCESS));
@@ -827,7 +1103,11 @@ public class DownloadManager {
                     parts.add("(" + statusClause(">=", 400)
                               + " AND " + statusClause("<", 600) + ")");
                 }
-                selectionParts.add(joinStrings(" OR ", parts));
+                if ((mStatusFlags & (STATUS_SUCCESSFUL | STATUS_FAILED)) == 0) {
+                    // Lets SQLite answer from the index of active downloads
+                    selectionParts.add(Constants.ACTIVE_SELECTION);
+                }
+                selectionParts.add("(" + joinStrings(" OR ", parts) + ")");
             }
 
             if (mOnlyIncludeVisibleInDownloadsUi) {
@@ -837,9 +1117,31 @@ public class DownloadManager {
             // only return rows which are not marked 'deleted = 1'
             selectionParts.add(Downloads.Impl.COLUMN_DELETED + " != '1'");
 
+            final boolean paged = mPageSize > 0 || mHasPageAfter;
+            if (mHasPageAfter) {
+                final String op = (mOrderDirection == ORDER_ASCENDING) ? " > ?" : " < ?";
+                selectionParts.add("(" + mOrderByColumn + op + " OR (" + mOrderByColumn
+                        + " = ? AND " + Downloads.Impl._ID + op + "))");
+                final String key = String.valueOf(mPageAfterKey);
+                final String[] keyArgs = new String[] {
+                        key, key, String.valueOf(mPageAfterId)
+                };
+                if (selectionArgs == null) {
+                    selectionArgs = keyArgs;
+                } else {
+                    final int length = selectionArgs.length;
+                    selectionArgs = Arrays.copyOf(selectionArgs, length + keyArgs.length);
+                    System.arraycopy(keyArgs, 0, selectionArgs, length, keyArgs.length);
+                }
+            }
+
             String selection = joinStrings(" AND ", selectionParts);
             String orderDirection = (mOrderDirection == ORDER_ASCENDING ? "ASC" : "DESC");
             String orderBy = mOrderByColumn + " " + orderDirection;
+            if (paged) {
+                // Pages need a total order to pick up where the last one ended
+                orderBy += ", " + Downloads.Impl._ID + " " + orderDirection;
+            }
 
             return resolver.query(uri, projection, selection, selectionArgs, orderBy);
         }
@@ -913,6 +1215,133 @@ public class DownloadManager {
         mAccessFilename = accessFilename;
     }
 
+    /**
+     * Set the minimum time between change notifications for the given URI and
+     * the URIs below it, {@link Downloads.Impl#CONTENT_URI} for instance.
+     * Changes within the interval are merged into a single notification at
+     * its end; a download reaching a final status is always announced right
+     * away.
+     *
+     * @param intervalMillis the minimum interval, 0 to notify every change,
+     *            or a negative value to restore the default
+     */
+    public void setMinNotifyInterval(Uri uri, long intervalMillis) {
+        final Bundle extras = new Bundle();
+        extras.putLong(DownloadProvider.EXTRA_INTERVAL, intervalMillis);
+        callProvider(DownloadProvider.METHOD_SET_NOTIFY_INTERVAL, uri.toString(), extras);
+    }
+
+    /**
+     * Call a method of {@link DownloadProvider}. {@link ContentResolver#call}
+     * only arrived with Honeycomb; before it, the provider is called
+     * directly, since it runs in this process.
+     */
+    private Bundle callProvider(String method, String arg, Bundle extras) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return mResolver.call(Downloads.Impl.CONTENT_URI, method, arg, extras);
+        }
+        return DownloadProvider.callInProcess(method, arg, extras);
+    }
+
+    /**
+     * Set how long after finishing downloads are moved to the archive by the
+     * daily cleanup job. Archived downloads are left out of queries unless
+     * {@link Query#setIncludeArchived(boolean)} asks for them.
+     *
+     * @param ageMillis the age, 0 or less to stop archiving
+     */
+    public void setArchiveAge(long ageMillis) {
+        final Bundle extras = new Bundle();
+        extras.putLong(DownloadProvider.EXTRA_AGE, ageMillis);
+        callProvider(DownloadProvider.METHOD_SET_ARCHIVE_AGE, null, extras);
+    }
+
+    /**
+     * Return the bytes held by this app's downloads, as counted against the
+     * quota set with {@link Request#setQuota(long, boolean)}. Failed
+     * downloads count for nothing and unfinished ones for what they have
+     * fetched so far.
+     */
+    public long getUsageBytes() {
+        final Bundle result = callProvider(DownloadProvider.METHOD_GET_USAGE, mPackageName,
+                null);
+        return (result != null) ? result.getLong(DownloadProvider.EXTRA_BYTES) : 0;
+    }
+
+    /**
+     * Return how many of this app's downloads are in each status and the
+     * bytes they have and still need, without reading them. The counts are
+     * kept up to date as downloads change, so this reads only a few rows.
+     * Archived downloads and removed ones are left out. Register a
+     * {@link android.database.ContentObserver} on
+     * {@link Downloads.Impl#SUMMARY_CONTENT_URI} to hear when it changes.
+     */
+    public Summary getSummary() {
+        final Bundle result = callProvider(DownloadProvider.METHOD_GET_SUMMARY, mPackageName,
+                null);
+        return new Summary(result);
+    }
+
+    /**
+     * Download counts and bytes by status, as returned by
+     * {@link DownloadManager#getSummary()}.
+     */
+    public static class Summary {
+        private final int[] mStatusClasses;
+        private final long[] mCounts;
+        private final long[] mBytes;
+        private final long[] mRemaining;
+
+        Summary(Bundle result) {
+            if (result != null) {
+                mStatusClasses = result.getIntArray(DownloadProvider.EXTRA_STATUS_CLASSES);
+                mCounts = result.getLongArray(DownloadProvider.EXTRA_COUNTS);
+                mBytes = result.getLongArray(DownloadProvider.EXTRA_BYTES);
+                mRemaining = result.getLongArray(DownloadProvider.EXTRA_REMAINING);
+            } else {
+                mStatusClasses = new int[0];
+                mCounts = mBytes = mRemaining = new long[0];
+            }
+        }
+
+        /**
+         * Return the number of downloads with any of the given statuses.
+         * @param statusFlags any combination of the STATUS_* bit flags
+         */
+        public long getCount(int statusFlags) {
+            return sum(mCounts, statusFlags);
+        }
+
+        /**
+         * Return the bytes downloaded so far by downloads with any of the
+         * given statuses.
+         * @param statusFlags any combination of the STATUS_* bit flags
+         */
+        public long getBytesDownloaded(int statusFlags) {
+            return sum(mBytes, statusFlags);
+        }
+
+        /**
+         * Return the bytes still to download for downloads with any of the
+         * given statuses. Downloads whose size isn't known yet count for
+         * nothing.
+         * @param statusFlags any combination of the STATUS_* bit flags
+         */
+        public long getBytesRemaining(int statusFlags) {
+            return sum(mRemaining, statusFlags);
+        }
+
+        private long sum(long[] values, int statusFlags) {
+            long sum = 0;
+            for (int i = 0; i < mStatusClasses.length; i++) {
+                if ((mStatusClasses[i] & statusFlags) != 0) {
+                    sum += values[i];
+                }
+            }
+            return sum;
+        }
+    }
+
     /**
      * Enqueue a new download.  The download will start automatically once the download manager is
      * ready to execute it and connectivity is available.
@@ -928,6 +1357,164 @@ public class DownloadManager {
         return id;
     }
 
+    /**
+     * Enqueue a new download without waiting for it to be written. The
+     * download is validated and given its ID right away, then written
+     * together with every other download enqueued around the same time in a
+     * single transaction, with one change notification and one service start
+     * per group. Use this when enqueueing from the UI thread.
+     * <p>
+     * The returned ID is reserved but the download is only visible to
+     * {@link #query(Query)} and the other methods of this class once
+     * {@link PendingDownload#get()} returns.
+     * <p>
+     * Before Honeycomb, which lacks {@link ContentResolver#call}, this falls
+     * back to {@link #enqueue(Request)} and returns once the download is
+     * written.
+     *
+     * @param request the parameters specifying this download
+     * @return handle holding the reserved ID of the download
+     */
+    public PendingDownload enqueueAsync(Request request) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return new PendingDownload(mResolver, enqueue(request), true);
+        }
+        final Bundle extras = new Bundle();
+        extras.putParcelable(DownloadProvider.EXTRA_VALUES, request.toContentValues(mPackageName));
+        final Bundle result = mResolver.call(Downloads.Impl.CONTENT_URI,
+                DownloadProvider.METHOD_ENQUEUE_ASYNC, null, extras);
+        return new PendingDownload(mResolver, result.getLong(DownloadProvider.EXTRA_ID), null);
+    }
+
+    /**
+     * Download enqueued with {@link DownloadManager#enqueueAsync(Request)}.
+     * Its ID is known at once; {@link #get()} blocks until the download has
+     * been written and returns the same ID.
+     */
+    public static class PendingDownload implements Future<Long> {
+        private final ContentResolver mResolver;
+        private final long mId;
+
+        /** Whether the download was written, or null while still queued. */
+        private volatile Boolean mInserted;
+
+        private PendingDownload(ContentResolver resolver, long id, Boolean inserted) {
+            mResolver = resolver;
+            mId = id;
+            mInserted = inserted;
+        }
+
+        /**
+         * Return the ID reserved for this download.
+         */
+        public long getId() {
+            return mId;
+        }
+
+        /**
+         * Queued downloads can't be canceled; use {@link DownloadManager#remove}
+         * once they are written.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return await(0);
+        }
+
+        @Override
+        public Long get() throws InterruptedException, ExecutionException {
+            if (!await(-1)) {
+                // Only an interrupt ends an unbounded wait early
+                Thread.interrupted();
+                throw new InterruptedException();
+            }
+            return getResult();
+        }
+
+        @Override
+        public Long get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!await(unit.toMillis(timeout))) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                throw new TimeoutException("Download " + mId + " not written yet");
+            }
+            return getResult();
+        }
+
+        private Long getResult() throws ExecutionException {
+            if (!mInserted) {
+                throw new ExecutionException(
+                        new IllegalStateException("Failed to enqueue download " + mId));
+            }
+            return mId;
+        }
+
+        /**
+         * @param timeout milliseconds to wait, or -1 for no limit
+         * @return if the download is no longer queued.
+         */
+        private boolean await(long timeout) {
+            if (mInserted != null) {
+                return true;
+            }
+            final Bundle extras = new Bundle();
+            extras.putLong(DownloadProvider.EXTRA_TIMEOUT, timeout);
+            final Bundle result = mResolver.call(Downloads.Impl.CONTENT_URI,
+                    DownloadProvider.METHOD_AWAIT_ENQUEUE, String.valueOf(mId), extras);
+            if (!result.getBoolean(DownloadProvider.EXTRA_COMMITTED)) {
+                return false;
+            }
+            mInserted = result.getBoolean(DownloadProvider.EXTRA_INSERTED);
+            return true;
+        }
+    }
+
+    /**
+     * Enqueue several downloads at once. Rows and their request headers are
+     * written in a single provider transaction, with one change notification
+     * and one service start for the whole batch, which is far cheaper than
+     * calling {@link #enqueue(Request)} for each request. Either every request
+     * is enqueued or none is.
+     *
+     * @param requests the parameters specifying each download
+     * @return IDs of the downloads, in the same order as the requests
+     */
+    public long[] enqueue(List<Request> requests) {
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(requests.size());
+        for (Request request : requests) {
+            operations.add(ContentProviderOperation.newInsert(Downloads.Impl.CONTENT_URI)
+                    .withValues(request.toContentValues(mPackageName))
+                    .build());
+        }
+
+        final ContentProviderResult[] results;
+        try {
+            results = mResolver.applyBatch(Downloads.Impl.AUTHORITIES, operations);
+        } catch (RemoteException e) {
+            throw new IllegalStateException("Failed to enqueue downloads", e);
+        } catch (OperationApplicationException e) {
+            throw new IllegalStateException("Failed to enqueue downloads", e);
+        }
+
+        final long[] ids = new long[results.length];
+        for (int i = 0; i < results.length; i++) {
+            ids[i] = Long.parseLong(results[i].uri.getLastPathSegment());
+        }
+        return ids;
+    }
+
     /**
      * Marks the specified download as 'to be deleted'. This is done when a completed download
      * is to be removed but the row was stored without enough info to delete the corresponding
@@ -942,7 +1529,9 @@ public class DownloadManager {
             // called with nothing to remove!
             throw new IllegalArgumentException("input param 'ids' can't be null");
         }
-        return mResolver.delete(mBaseUri, getWhereClauseForIds(ids), getWhereArgsForIds(ids));
+        final int count = applyToIds(null, ids);
+        DownloadInfo.applyDeleted(ids);
+        return count;
     }
 
     /**
@@ -971,6 +1560,46 @@ public class DownloadManager {
         return new CursorTranslator(underlyingCursor, mBaseUri, mAccessFilename);
     }
 
+    /**
+     * Query the download manager for only the given columns, which keeps
+     * the rows of large lists small enough to page through cheaply with
+     * {@link Query#setPageSize(int)}. {@link #COLUMN_ID} and the sort column
+     * are always included, so the next page can be asked for.
+     * @param query parameters specifying filters for this query
+     * @param columns COLUMN_* constants to return
+     * @return a Cursor over the result set of downloads, or null
+     */
+    public Cursor query(Query query, String... columns) {
+        final LinkedHashSet<String> projection = new LinkedHashSet<String>();
+        addUnderlyingColumn(projection, COLUMN_ID);
+        addUnderlyingColumn(projection, query.getSortColumn());
+        for (String column : columns) {
+            addUnderlyingColumn(projection, column);
+            // Computed columns are worked out from others
+            if (COLUMN_REASON.equals(column)) {
+                addUnderlyingColumn(projection, COLUMN_STATUS);
+            } else if (COLUMN_LOCAL_URI.equals(column)) {
+                addUnderlyingColumn(projection, Downloads.Impl.COLUMN_DESTINATION);
+                addUnderlyingColumn(projection, COLUMN_LOCAL_FILENAME);
+            }
+        }
+
+        Cursor underlyingCursor = query.runQuery(mResolver,
+                projection.toArray(new String[projection.size()]), mBaseUri);
+        if (underlyingCursor == null) {
+            return null;
+        }
+        return new CursorTranslator(underlyingCursor, mBaseUri, mAccessFilename);
+    }
+
+    private static void addUnderlyingColumn(LinkedHashSet<String> projection, String column) {
+        final String underlying = sUnderlyingColumns.get(column);
+        if (underlying == null) {
+            throw new IllegalArgumentException("Cannot query column " + column);
+        }
+        projection.add(underlying);
+    }
+
     /**
      * Open a downloaded file for reading.  The download must have completed.
      * @param id the ID of the download
@@ -981,6 +1610,18 @@ public class DownloadManager {
         return mResolver.openFileDescriptor(getDownloadUri(id), "r");
     }
 
+    /**
+     * Open a download requested with {@link Request#setSparse(boolean)} for
+     * seekable reading. Any blocks missing under a read are fetched before the
+     * read returns, so the download doesn't need to have completed.
+     * @param id the ID of the download
+     * @return a {@link SparseFile} which must be closed when done
+     * @throws IOException if the download doesn't exist or isn't sparse
+     */
+    public SparseFile openSparseFile(long id) throws IOException {
+        return new SparseFile(SparseDownload.acquire(mApplicationContext, id));
+    }
+
     /**
      * Returns the {@link Uri} of the given downloaded file id, if the file is
      * downloaded successfully. Otherwise, null is returned.
@@ -1048,26 +1689,32 @@ public class DownloadManager {
      * @hide
      */
     public void restartDownload(long... ids) {
-        Cursor cursor = query(new Query().setFilterById(ids));
-        try {
-            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                int status = cursor.getInt(cursor.getColumnIndex(COLUMN_STATUS));
-                if (status != STATUS_SUCCESSFUL && status != STATUS_FAILED) {
-                    throw new IllegalArgumentException("Cannot restart incomplete download: "
-                            + cursor.getLong(cursor.getColumnIndex(COLUMN_ID)));
+        for (int start = 0; start < ids.length; start += MAX_IDS_PER_STATEMENT) {
+            final long[] chunk = Arrays.copyOfRange(ids, start,
+                    Math.min(start + MAX_IDS_PER_STATEMENT, ids.length));
+            Cursor cursor = query(new Query().setFilterById(chunk));
+            try {
+                for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                    int status = cursor.getInt(cursor.getColumnIndex(COLUMN_STATUS));
+                    if (status != STATUS_SUCCESSFUL && status != STATUS_FAILED) {
+                        throw new IllegalArgumentException("Cannot restart incomplete download: "
+                                + cursor.getLong(cursor.getColumnIndex(COLUMN_ID)));
+                    }
                 }
+            } finally {
+                cursor.close();
             }
-        } finally {
-            cursor.close();
         }
 
         ContentValues values = new ContentValues();
         values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, 0);
         values.put(Downloads.Impl.COLUMN_TOTAL_BYTES, -1);
         values.putNull(Downloads.Impl._DATA);
+        values.putNull(Downloads.Impl.COLUMN_BLOCK_MAP);
+        values.putNull(Downloads.Impl.COLUMN_VERIFIED_MAP);
         values.put(Downloads.Impl.COLUMN_STATUS, Downloads.Impl.STATUS_PENDING);
         values.put(Downloads.Impl.COLUMN_FAILED_CONNECTIONS, 0);
-        mResolver.update(mBaseUri, values, getWhereClauseForIds(ids), getWhereArgsForIds(ids));
+        applyToIds(values, ids);
     }
 
     public void forceDownload(long... ids) {
@@ -1075,21 +1722,26 @@ public class DownloadManager {
         values.put(Downloads.Impl.COLUMN_STATUS, Downloads.Impl.STATUS_PENDING);
         values.put(Downloads.Impl.COLUMN_CONTROL, Downloads.Impl.CONTROL_RUN);
         values.put(Downloads.Impl.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT, 1);
-        mResolver.update(mBaseUri, values, getWhereClauseForIds(ids), getWhereArgsForIds(ids));
+        applyToIds(values, ids);
     }
 
     public int pauseDownload(long... ids) {
         ContentValues values = new ContentValues();
         values.put(Downloads.Impl.COLUMN_STATUS, Downloads.Impl.STATUS_PAUSED_BY_APP);
         values.put(Downloads.Impl.COLUMN_CONTROL, Downloads.Impl.CONTROL_PAUSED);
-        return mResolver.update(mBaseUri, values, getWhereClauseForIds(ids), getWhereArgsForIds(ids));
+        final int count = applyToIds(values, ids);
+        // Running threads notice at their next check, not the next update pass
+        DownloadInfo.applyControl(ids, Downloads.Impl.CONTROL_PAUSED);
+        return count;
     }
 
     public int resumeDownload(long... ids) {
         ContentValues values = new ContentValues();
         values.put(Downloads.Impl.COLUMN_STATUS, Downloads.Impl.STATUS_PENDING);
         values.put(Downloads.Impl.COLUMN_CONTROL, Downloads.Impl.CONTROL_RUN);
-        return mResolver.update(mBaseUri, values, getWhereClauseForIds(ids), getWhereArgsForIds(ids));
+        final int count = applyToIds(values, ids);
+        DownloadInfo.applyControl(ids, Downloads.Impl.CONTROL_RUN);
+        return count;
     }
 
     /**
@@ -1298,6 +1950,9 @@ public class DownloadManager {
     private static final String NON_DOWNLOADMANAGER_DOWNLOAD =
             "non-dwnldmngr-download-dont-retry2download";
 
+    /** SQLite's default limit on bound parameters in a single statement */
+    static final int MAX_IDS_PER_STATEMENT = 999;
+
     private static void validateArgumentIsNonEmpty(String paramName, String val) {
         if (TextUtils.isEmpty(val)) {
             throw new IllegalArgumentException(paramName + " can't be null");
@@ -1314,17 +1969,74 @@ public class DownloadManager {
     }
 
     /**
-     * Get a parameterized SQL WHERE clause to select a bunch of IDs.
+     * Update the given downloads with the given values, or delete them when
+     * values are {@code null}. Large ID sets are split into statements of at
+     * most {@link #MAX_IDS_PER_STATEMENT} IDs, applied as one provider batch
+     * so they share a single transaction and change notification.
+     *
+     * @return the number of downloads affected
+     */
+    private int applyToIds(ContentValues values, long[] ids) {
+        if (ids.length <= MAX_IDS_PER_STATEMENT) {
+            if (values == null) {
+                return mResolver.delete(mBaseUri, getWhereClauseForIds(ids),
+                        getWhereArgsForIds(ids));
+            } else {
+                return mResolver.update(mBaseUri, values, getWhereClauseForIds(ids),
+                        getWhereArgsForIds(ids));
+            }
+        }
+
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        for (int start = 0; start < ids.length; start += MAX_IDS_PER_STATEMENT) {
+            final long[] chunk = Arrays.copyOfRange(ids, start,
+                    Math.min(start + MAX_IDS_PER_STATEMENT, ids.length));
+            final ContentProviderOperation.Builder builder = (values == null)
+                    ? ContentProviderOperation.newDelete(mBaseUri)
+                    : ContentProviderOperation.newUpdate(mBaseUri).withValues(values);
+            operations.add(builder
+                    .withSelection(getWhereClauseForIds(chunk), getWhereArgsForIds(chunk))
+                    .build());
+        }
+
+        final ContentProviderResult[] results;
+        try {
+            results = mResolver.applyBatch(Downloads.Impl.AUTHORITIES, operations);
+        } catch (RemoteException e) {
+            throw new IllegalStateException("Failed to update downloads", e);
+        } catch (OperationApplicationException e) {
+            throw new IllegalStateException("Failed to update downloads", e);
+        }
+
+        int count = 0;
+        for (ContentProviderResult result : results) {
+            count += result.count;
+        }
+        return count;
+    }
+
+    /**
+     * Get a parameterized SQL WHERE clause to select a bunch of IDs. Callers
+     * with more than {@link #MAX_IDS_PER_STATEMENT} IDs must split them up.
      */
     static String getWhereClauseForIds(long[] ids) {
+        return getWhereClauseForIds(Downloads.Impl._ID, ids);
+    }
+
+    /**
+     * Get a parameterized SQL WHERE clause to select a bunch of IDs held in
+     * the given column.
+     */
+    static String getWhereClauseForIds(String column, long[] ids) {
         StringBuilder whereClause = new StringBuilder();
-        whereClause.append("(");
+        whereClause.append(column);
+        whereClause.append(" IN (");
         for (int i = 0; i < ids.length; i++) {
             if (i > 0) {
-                whereClause.append("OR ");
+                whereClause.append(",");
             }
-            whereClause.append(Downloads.Impl._ID);
-            whereClause.append(" = ? ");
+            whereClause.append("?");
         }
         whereClause.append(")");
         return whereClause.toString();
@@ -1351,10 +2063,24 @@ public class DownloadManager {
         private final Uri mBaseUri;
         private final boolean mAccessFilename;
 
+        /** Positions of the columns translated here, or -1 when absent */
+        private final int mReasonIndex;
+        private final int mStatusIndex;
+        private final int mLocalUriIndex;
+        private final int mLocalFilenameIndex;
+        private final int mDestinationIndex;
+        private final int mIdIndex;
+
         public CursorTranslator(Cursor cursor, Uri baseUri, boolean accessFilename) {
             super(cursor);
             mBaseUri = baseUri;
             mAccessFilename = accessFilename;
+            mReasonIndex = cursor.getColumnIndex(COLUMN_REASON);
+            mStatusIndex = cursor.getColumnIndex(COLUMN_STATUS);
+            mLocalUriIndex = cursor.getColumnIndex(COLUMN_LOCAL_URI);
+            mLocalFilenameIndex = cursor.getColumnIndex(COLUMN_LOCAL_FILENAME);
+            mDestinationIndex = cursor.getColumnIndex(Downloads.Impl.COLUMN_DESTINATION);
+            mIdIndex = cursor.getColumnIndex(Downloads.Impl._ID);
         }
 
         @Override
@@ -1364,10 +2090,10 @@ public class DownloadManager {
 
         @Override
         public long getLong(int columnIndex) {
-            if (getColumnName(columnIndex).equals(COLUMN_REASON)) {
-                return getReason(super.getInt(getColumnIndex(Downloads.Impl.COLUMN_STATUS)));
-            } else if (getColumnName(columnIndex).equals(COLUMN_STATUS)) {
-                return translateStatus(super.getInt(getColumnIndex(Downloads.Impl.COLUMN_STATUS)));
+            if (columnIndex == mReasonIndex) {
+                return getReason(super.getInt(mStatusIndex));
+            } else if (columnIndex == mStatusIndex) {
+                return translateStatus(super.getInt(mStatusIndex));
             } else {
                 return super.getLong(columnIndex);
             }
@@ -1375,27 +2101,21 @@ public class DownloadManager {
 
         @Override
         public String getString(int columnIndex) {
-            final String columnName = getColumnName(columnIndex);
-            switch (columnName) {
-                case COLUMN_LOCAL_URI:
-                    return getLocalUri();
-                case COLUMN_LOCAL_FILENAME:
-                    if (!mAccessFilename) {
-                        throw new SecurityException(
-                                "COLUMN_LOCAL_FILENAME is deprecated;"
-                                        + " use ContentResolver.openFileDescriptor() instead");
-                    }
-                default:
-                    return super.getString(columnIndex);
+            if (columnIndex == mLocalUriIndex) {
+                return getLocalUri();
+            } else if (columnIndex == mLocalFilenameIndex && !mAccessFilename) {
+                throw new SecurityException("COLUMN_LOCAL_FILENAME is deprecated;"
+                        + " use ContentResolver.openFileDescriptor() instead");
             }
+            return super.getString(columnIndex);
         }
 
         private String getLocalUri() {
-            long destinationType = getLong(getColumnIndex(Downloads.Impl.COLUMN_DESTINATION));
+            long destinationType = getLong(mDestinationIndex);
             if (destinationType == Downloads.Impl.DESTINATION_FILE_URI ||
                     destinationType == Downloads.Impl.DESTINATION_EXTERNAL ||
                     destinationType == Downloads.Impl.DESTINATION_NON_DOWNLOADMANAGER_DOWNLOAD) {
-                String localPath = super.getString(getColumnIndex(COLUMN_LOCAL_FILENAME));
+                String localPath = super.getString(mLocalFilenameIndex);
                 if (localPath == null) {
                     return null;
                 }
@@ -1403,7 +2123,7 @@ public class DownloadManager {
             }
 
             // return content URI for cache download
-            long downloadId = getLong(getColumnIndex(Downloads.Impl._ID));
+            long downloadId = getLong(mIdIndex);
             return ContentUris.withAppendedId(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, downloadId).toString();
         }
 
@@ -1431,6 +2151,9 @@ public class DownloadManager {
                 case Downloads.Impl.STATUS_QUEUED_FOR_WIFI:
                     return PAUSED_QUEUED_FOR_WIFI;
 
+                case Downloads.Impl.STATUS_QUEUED_FOR_QUOTA:
+                    return PAUSED_QUEUED_FOR_QUOTA;
+
                 default:
                     return PAUSED_UNKNOWN;
             }
@@ -1469,6 +2192,9 @@ public class DownloadManager {
                 case Downloads.Impl.STATUS_FILE_ALREADY_EXISTS_ERROR:
                     return ERROR_FILE_ALREADY_EXISTS;
 
+                case Downloads.Impl.STATUS_QUOTA_EXCEEDED:
+                    return ERROR_QUOTA_EXCEEDED;
+
                 default:
                     return ERROR_UNKNOWN;
             }
@@ -1486,6 +2212,7 @@ public class DownloadManager {
                 case Downloads.Impl.STATUS_WAITING_TO_RETRY:
                 case Downloads.Impl.STATUS_WAITING_FOR_NETWORK:
                 case Downloads.Impl.STATUS_QUEUED_FOR_WIFI:
+                case Downloads.Impl.STATUS_QUEUED_FOR_QUOTA:
                     return STATUS_PAUSED;
 
                 case Downloads.Impl.STATUS_SUCCESS:
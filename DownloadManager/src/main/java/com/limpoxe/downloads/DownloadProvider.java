@@ -17,36 +17,42 @@
 package com.limpoxe.downloads;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
-import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
 import android.os.Process;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.OpenableColumns;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.Log;
 
+import com.limpoxe.downloads.utils.GuardedBy;
 import com.limpoxe.downloads.utils.IoUtils;
 
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -61,12 +67,25 @@ import static com.limpoxe.downloads.Downloads.Impl.AUTHORITIES;
  * Allows application to interact with the download manager.
  */
 public final class DownloadProvider extends ContentProvider {
-    /** Database filename */
-    private static final String DB_NAME = "downloads.db";
-    /** Current database version */
-    private static final int DB_VERSION = 109;
     /** Name of table in the database */
-    private static final String DB_TABLE = "downloads";
+    private static final String DB_TABLE = DatabaseHelper.DB_TABLE;
+    /** Name of the view that downloads are read through */
+    private static final String DOWNLOADS_VIEW = DatabaseHelper.DOWNLOADS_VIEW;
+    /** Name of the table holding archived downloads */
+    private static final String ARCHIVE_TABLE = DatabaseHelper.ARCHIVE_TABLE;
+    /** Source of reads that should see archived downloads as well */
+    private static final String DOWNLOADS_WITH_ARCHIVE = DatabaseHelper.DOWNLOADS_WITH_ARCHIVE;
+
+    /** Query parameter that asks for archived downloads to be included */
+    static final String QUERY_PARAM_ARCHIVED = "archived";
+    /** Query parameter limiting the number of rows returned */
+    static final String QUERY_PARAM_LIMIT = "limit";
+
+    /**
+     * URI notified for every change {@link DownloadService} should act on,
+     * which leaves out progress checkpoints written by the engine itself
+     */
+    static final Uri SERVICE_NOTIFY_URI = Uri.parse("content://" + AUTHORITIES + "/service_notify");
 
     /** MIME type for the entire download list */
     private static final String DOWNLOAD_LIST_TYPE = "vnd.android.cursor.dir/download";
@@ -113,12 +132,6 @@ public final class DownloadProvider extends ContentProvider {
                 PUBLIC_DOWNLOAD_ID);
     }
 
-    /** Different base URIs that could be used to access an individual download */
-    private static final Uri[] BASE_URIS = new Uri[] {
-            Downloads.Impl.CONTENT_URI,
-            Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
-    };
-
     private static final String[] sAppReadableColumnsArray = new String[] {
         Downloads.Impl._ID,
         Downloads.Impl.COLUMN_APP_DATA,
@@ -162,6 +175,99 @@ public final class DownloadProvider extends ContentProvider {
 
     private Handler mHandler;
 
+    /**
+     * State of an {@link #applyBatch} running on the calling thread, which
+     * holds back change notifications and service starts until it commits.
+     */
+    private static class BatchState {
+        public boolean mNotify;
+        public boolean mNotifyNow;
+        public boolean mStartService;
+    }
+
+    private final ThreadLocal<BatchState> mBatch = new ThreadLocal<BatchState>();
+
+    /** {@link #call} method that queues a download for the next group commit */
+    static final String METHOD_ENQUEUE_ASYNC = "enqueue_async";
+    /** {@link #call} method that waits until a queued download is written */
+    static final String METHOD_AWAIT_ENQUEUE = "await_enqueue";
+
+    static final String EXTRA_VALUES = "values";
+    static final String EXTRA_ID = "id";
+    /** Milliseconds to wait in {@link #METHOD_AWAIT_ENQUEUE}, or -1 for no limit */
+    static final String EXTRA_TIMEOUT = "timeout";
+    static final String EXTRA_COMMITTED = "committed";
+    static final String EXTRA_INSERTED = "inserted";
+
+    /**
+     * {@link #call} method setting the minimum time between change
+     * notifications for the URI passed as argument and those below it
+     */
+    static final String METHOD_SET_NOTIFY_INTERVAL = "set_notify_interval";
+    static final String EXTRA_INTERVAL = "interval";
+
+    /** {@link #call} method setting the age at which downloads are archived */
+    static final String METHOD_SET_ARCHIVE_AGE = "set_archive_age";
+    static final String EXTRA_AGE = "age";
+
+    /**
+     * {@link #call} method returning the bytes held by the downloads of the
+     * owner passed as argument, or of the calling UID if none is given
+     */
+    static final String METHOD_GET_USAGE = "get_usage";
+    static final String EXTRA_BYTES = "bytes";
+
+    /**
+     * {@link #call} method returning the download counts and bytes by
+     * status class of the owner passed as argument, or of the calling UID
+     * if none is given
+     */
+    static final String METHOD_GET_SUMMARY = "get_summary";
+    static final String EXTRA_STATUS_CLASSES = "status_classes";
+    static final String EXTRA_COUNTS = "counts";
+    static final String EXTRA_REMAINING = "remaining";
+
+    /**
+     * The provider of this process, which {@link DownloadManager} calls
+     * directly where {@link android.content.ContentResolver#call} is missing
+     */
+    private static volatile DownloadProvider sInstance;
+
+    /** Database access shared with the download engine */
+    private DownloadsDao mDao;
+
+    /**
+     * Download accepted by {@link #METHOD_ENQUEUE_ASYNC}, already validated
+     * against its caller and holding a reserved ID.
+     */
+    private static class PendingInsert {
+        public final ContentValues mFilteredValues;
+        public final ContentValues mValues;
+
+        public PendingInsert(ContentValues filteredValues, ContentValues values) {
+            mFilteredValues = filteredValues;
+            mValues = values;
+        }
+    }
+
+    private final Object mPendingLock = new Object();
+    @GuardedBy("mPendingLock")
+    private ArrayList<PendingInsert> mPendingInserts = new ArrayList<PendingInsert>();
+    @GuardedBy("mPendingLock")
+    private final HashSet<Long> mPendingIds = new HashSet<Long>();
+
+    private final Runnable mGroupCommit = new Runnable() {
+        @Override
+        public void run() {
+            commitPendingInserts();
+        }
+    };
+
+    private final Object mIdLock = new Object();
+    /** Next ID handed out by {@link #reserveDownloadId()}, or -1 until loaded */
+    @GuardedBy("mIdLock")
+    private long mNextDownloadId = -1;
+
     /** The database that lies underneath this content provider */
     private SQLiteOpenHelper mOpenHelper = null;
 
@@ -206,232 +312,16 @@ public final class DownloadProvider extends ContentProvider {
         }
     }
 
-    /**
-     * Creates and updated database on demand when opening it.
-     * Helper class to create database the first time the provider is
-     * initialized and upgrade it when a new version of the provider needs
-     * an updated version of the database.
-     */
-    private final class DatabaseHelper extends SQLiteOpenHelper {
-        public DatabaseHelper(final Context context) {
-            super(context, DB_NAME, null, DB_VERSION);
-        }
-
-        /**
-         * Creates database the first time we try to open it.
-         */
-        @Override
-        public void onCreate(final SQLiteDatabase db) {
-            if (Constants.LOGVV) {
-                Log.v(Constants.TAG, "populating new database");
-            }
-            onUpgrade(db, 0, DB_VERSION);
-        }
-
-        /**
-         * Updates the database format when a content provider is used
-         * with a database that was created with a different format.
-         *
-         * Note: to support downgrades, creating a table should always drop it first if it already
-         * exists.
-         */
-        @Override
-        public void onUpgrade(final SQLiteDatabase db, int oldV, final int newV) {
-            if (oldV == 31) {
-                // 31 and 100 are identical, just in different codelines. Upgrading from 31 is the
-                // same as upgrading from 100.
-                oldV = 100;
-            } else if (oldV < 100) {
-                // no logic to upgrade from these older version, just recreate the DB
-                Log.i(Constants.TAG, "Upgrading downloads database from version " + oldV
-                      + " to version " + newV + ", which will destroy all old data");
-                oldV = 99;
-            } else if (oldV > newV) {
-                // user must have downgraded software; we have no way to know how to downgrade the
-                // DB, so just recreate it
-                Log.i(Constants.TAG, "Downgrading downloads database from version " + oldV
-                      + " (current version is " + newV + "), destroying all old data");
-                oldV = 99;
-            }
-
-            for (int version = oldV + 1; version <= newV; version++) {
-                upgradeTo(db, version);
-            }
-        }
-
-        /**
-         * Upgrade database from (version - 1) to version.
-         */
-        private void upgradeTo(SQLiteDatabase db, int version) {
-            switch (version) {
-                case 100:
-                    createDownloadsTable(db);
-                    break;
-
-                case 101:
-                    createHeadersTable(db);
-                    break;
-
-                case 102:
-                    addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_IS_PUBLIC_API,
-                              "INTEGER NOT NULL DEFAULT 0");
-                    addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_ALLOW_ROAMING,
-                              "INTEGER NOT NULL DEFAULT 0");
-                    addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_ALLOWED_NETWORK_TYPES,
-                              "INTEGER NOT NULL DEFAULT 0");
-                    break;
-
-                case 103:
-                    addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI,
-                              "INTEGER NOT NULL DEFAULT 1");
-                    makeCacheDownloadsInvisible(db);
-                    break;
-
-                case 104:
-                    addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT,
-                            "INTEGER NOT NULL DEFAULT 0");
-                    break;
-
-                case 105:
-                    fillNullValues(db);
-                    break;
-
-                case 106:
-                    addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_MEDIAPROVIDER_URI, "TEXT");
-                    addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_DELETED,
-                            "BOOLEAN NOT NULL DEFAULT 0");
-                    break;
-
-                case 107:
-                    addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_ERROR_MSG, "TEXT");
-                    break;
-
-                case 108:
-                    addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_ALLOW_METERED,
-                            "INTEGER NOT NULL DEFAULT 1");
-                    break;
-
-                case 109:
-                    addColumn(db, DB_TABLE, Downloads.Impl.COLUMN_ALLOW_WRITE,
-                            "BOOLEAN NOT NULL DEFAULT 0");
-                    break;
-
-                default:
-                    throw new IllegalStateException("Don't know how to upgrade to " + version);
-            }
-        }
-
-        /**
-         * insert() now ensures these four columns are never null for new downloads, so this method
-         * makes that true for existing columns, so that code can rely on this assumption.
-         */
-        private void fillNullValues(SQLiteDatabase db) {
-            ContentValues values = new ContentValues();
-            values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, 0);
-            fillNullValuesForColumn(db, values);
-            values.put(Downloads.Impl.COLUMN_TOTAL_BYTES, -1);
-            fillNullValuesForColumn(db, values);
-            values.put(Downloads.Impl.COLUMN_TITLE, "");
-            fillNullValuesForColumn(db, values);
-            values.put(Downloads.Impl.COLUMN_DESCRIPTION, "");
-            fillNullValuesForColumn(db, values);
-        }
-
-        private void fillNullValuesForColumn(SQLiteDatabase db, ContentValues values) {
-            String column = values.valueSet().iterator().next().getKey();
-            db.update(DB_TABLE, values, column + " is null", null);
-            values.clear();
-        }
-
-        /**
-         * Set all existing downloads to the cache partition to be invisible in the downloads UI.
-         */
-        private void makeCacheDownloadsInvisible(SQLiteDatabase db) {
-            ContentValues values = new ContentValues();
-            values.put(Downloads.Impl.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI, false);
-            String cacheSelection = Downloads.Impl.COLUMN_DESTINATION
-                    + " != " + Downloads.Impl.DESTINATION_EXTERNAL;
-            db.update(DB_TABLE, values, cacheSelection, null);
-        }
-
-        /**
-         * Add a column to a table using ALTER TABLE.
-         * @param dbTable name of the table
-         * @param columnName name of the column to add
-         * @param columnDefinition SQL for the column definition
-         */
-        private void addColumn(SQLiteDatabase db, String dbTable, String columnName,
-                               String columnDefinition) {
-            db.execSQL("ALTER TABLE " + dbTable + " ADD COLUMN " + columnName + " "
-                       + columnDefinition);
-        }
-
-        /**
-         * Creates the table that'll hold the download information.
-         */
-        private void createDownloadsTable(SQLiteDatabase db) {
-            try {
-                db.execSQL("DROP TABLE IF EXISTS " + DB_TABLE);
-                db.execSQL("CREATE TABLE " + DB_TABLE + "(" +
-                        Downloads.Impl._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-                        Downloads.Impl.COLUMN_URI + " TEXT, " +
-                        Constants.RETRY_AFTER_X_REDIRECT_COUNT + " INTEGER, " +
-                        Downloads.Impl.COLUMN_APP_DATA + " TEXT, " +
-                        Downloads.Impl.COLUMN_NO_INTEGRITY + " BOOLEAN, " +
-                        Downloads.Impl.COLUMN_FILE_NAME_HINT + " TEXT, " +
-                        Constants.OTA_UPDATE + " BOOLEAN, " +
-                        Downloads.Impl._DATA + " TEXT, " +
-                        Downloads.Impl.COLUMN_MIME_TYPE + " TEXT, " +
-                        Downloads.Impl.COLUMN_DESTINATION + " INTEGER, " +
-                        Constants.NO_SYSTEM_FILES + " BOOLEAN, " +
-                        Downloads.Impl.COLUMN_VISIBILITY + " INTEGER, " +
-                        Downloads.Impl.COLUMN_CONTROL + " INTEGER, " +
-                        Downloads.Impl.COLUMN_STATUS + " INTEGER, " +
-                        Downloads.Impl.COLUMN_FAILED_CONNECTIONS + " INTEGER, " +
-                        Downloads.Impl.COLUMN_LAST_MODIFICATION + " BIGINT, " +
-                        Downloads.Impl.COLUMN_NOTIFICATION_PACKAGE + " TEXT, " +
-                        Downloads.Impl.COLUMN_NOTIFICATION_CLASS + " TEXT, " +
-                        Downloads.Impl.COLUMN_NOTIFICATION_EXTRAS + " TEXT, " +
-                        Downloads.Impl.COLUMN_COOKIE_DATA + " TEXT, " +
-                        Downloads.Impl.COLUMN_USER_AGENT + " TEXT, " +
-                        Downloads.Impl.COLUMN_REFERER + " TEXT, " +
-                        Downloads.Impl.COLUMN_TOTAL_BYTES + " INTEGER, " +
-                        Downloads.Impl.COLUMN_CURRENT_BYTES + " INTEGER, " +
-                        Constants.ETAG + " TEXT, " +
-                        Constants.UID + " INTEGER, " +
-                        Downloads.Impl.COLUMN_OTHER_UID + " INTEGER, " +
-                        Downloads.Impl.COLUMN_TITLE + " TEXT, " +
-                        Downloads.Impl.COLUMN_DESCRIPTION + " TEXT, " +
-                        Downloads.Impl.COLUMN_MEDIA_SCANNED + " BOOLEAN);");
-            } catch (SQLException ex) {
-                Log.e(Constants.TAG, "couldn't create table in downloads database");
-                throw ex;
-            }
-        }
-
-        private void createHeadersTable(SQLiteDatabase db) {
-            db.execSQL("DROP TABLE IF EXISTS " + Downloads.Impl.RequestHeaders.HEADERS_DB_TABLE);
-            db.execSQL("CREATE TABLE " + Downloads.Impl.RequestHeaders.HEADERS_DB_TABLE + "(" +
-                       "id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                       Downloads.Impl.RequestHeaders.COLUMN_DOWNLOAD_ID + " INTEGER NOT NULL," +
-                       Downloads.Impl.RequestHeaders.COLUMN_HEADER + " TEXT NOT NULL," +
-                       Downloads.Impl.RequestHeaders.COLUMN_VALUE + " TEXT NOT NULL" +
-                       ");");
-        }
-    }
-
     /**
      * Initializes the content provider when it is created.
      */
     @Override
     public boolean onCreate() {
 
-        HandlerThread handlerThread =
-                new HandlerThread("DownloadProvider handler", Process.THREAD_PRIORITY_BACKGROUND);
-        handlerThread.start();
-        mHandler = new Handler(handlerThread.getLooper());
-
-        mOpenHelper = new DatabaseHelper(getContext());
+        mDao = DownloadsDao.getInstance(getContext());
+        mHandler = mDao.getHandler();
+        mOpenHelper = mDao.getOpenHelper();
+        sInstance = this;
         // Initialize the system uid
         mSystemUid = Process.SYSTEM_UID;
         // Initialize the default container uid. Package name hardcoded
@@ -450,6 +340,16 @@ public final class DownloadProvider extends ContentProvider {
         // saves us by getting some initialization code in DownloadService out of the way.
         Context context = getContext();
         context.startService(new Intent(context, DownloadService.class));
+        // Load the next download ID in the background, so that the first
+        // asynchronous enqueue doesn't open the database on its caller's thread
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mIdLock) {
+                    loadNextDownloadIdLocked();
+                }
+            }
+        });
         return true;
     }
 
@@ -504,8 +404,29 @@ public final class DownloadProvider extends ContentProvider {
             throw new IllegalArgumentException("Unknown/Invalid URI " + uri);
         }
 
+        final ContentValues filteredValues = filterInsertValues(values);
+        final long rowID = insertDownload(db, filteredValues, values);
+        if (rowID == -1) {
+            Log.d(Constants.TAG, "couldn't insert into downloads database");
+            return null;
+        }
+
+        notifyContentChanged(uri, match);
+
+        // Always start service to handle notifications and/or scanning
+        startDownloadService();
+
+        return ContentUris.withAppendedId(Downloads.Impl.CONTENT_URI, rowID);
+    }
+
+    /**
+     * Validate the values of a new download against the calling app's
+     * permissions, returning only the columns it may set. Must run on the
+     * caller's Binder thread.
+     */
+    private ContentValues filterInsertValues(final ContentValues values) {
         // copy some of the input values as it
-        ContentValues filteredValues = new ContentValues();
+        final ContentValues filteredValues = new ContentValues();
         copyString(Downloads.Impl.COLUMN_URI, values, filteredValues);
         copyString(Downloads.Impl.COLUMN_APP_DATA, values, filteredValues);
         copyBoolean(Downloads.Impl.COLUMN_NO_INTEGRITY, values, filteredValues);
@@ -603,6 +524,15 @@ public final class DownloadProvider extends ContentProvider {
         copyString(Downloads.Impl.COLUMN_REFERER, values, filteredValues);
 
         copyInteger(Downloads.Impl.COLUMN_OTHER_UID, values, filteredValues);
+        copyInteger(Downloads.Impl.COLUMN_SPARSE, values, filteredValues);
+        copyLong(Downloads.Impl.COLUMN_RANGE_START, values, filteredValues);
+        copyLong(Downloads.Impl.COLUMN_RANGE_END, values, filteredValues);
+        copyString(Downloads.Impl.COLUMN_ZIP_ENTRIES, values, filteredValues);
+        copyString(Downloads.Impl.COLUMN_HASH_ALGORITHM, values, filteredValues);
+        copyInteger(Downloads.Impl.COLUMN_HASH_BLOCK_SIZE, values, filteredValues);
+        copyBlob(Downloads.Impl.COLUMN_BLOCK_HASHES, values, filteredValues);
+        copyLong(Downloads.Impl.COLUMN_QUOTA, values, filteredValues);
+        copyBoolean(Downloads.Impl.COLUMN_QUEUE_OVER_QUOTA, values, filteredValues);
 
         filteredValues.put(Constants.UID, Binder.getCallingUid());
         if (Binder.getCallingUid() == 0) {
@@ -638,20 +568,26 @@ public final class DownloadProvider extends ContentProvider {
             }
         }
 
-        long rowID = db.insert(DB_TABLE, null, filteredValues);
-        if (rowID == -1) {
-            Log.d(Constants.TAG, "couldn't insert into downloads database");
-            return null;
-        }
-
-        insertRequestHeaders(db, rowID, values);
-        notifyContentChanged(uri, match);
-
-        // Always start service to handle notifications and/or scanning
-        final Context context = getContext();
-        context.startService(new Intent(context, DownloadService.class));
+        return filteredValues;
+    }
 
-        return ContentUris.withAppendedId(Downloads.Impl.CONTENT_URI, rowID);
+    /**
+     * Insert a download row that already went through
+     * {@link #filterInsertValues}, along with its request headers, giving it
+     * the next reserved ID unless it already holds one.
+     *
+     * @return the new row ID, or -1 on failure.
+     */
+    private long insertDownload(SQLiteDatabase db, ContentValues filteredValues,
+            ContentValues values) {
+        if (!filteredValues.containsKey(Downloads.Impl._ID)) {
+            filteredValues.put(Downloads.Impl._ID, reserveDownloadId());
+        }
+        final long rowID = mDao.insertDownload(db, filteredValues);
+        if (rowID != -1) {
+            insertRequestHeaders(db, rowID, values);
+        }
+        return rowID;
     }
 
     /**
@@ -738,6 +674,15 @@ public final class DownloadProvider extends ContentProvider {
         values.remove(Downloads.Impl.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI);
         values.remove(Downloads.Impl.COLUMN_MEDIA_SCANNED);
         values.remove(Downloads.Impl.COLUMN_ALLOW_WRITE);
+        values.remove(Downloads.Impl.COLUMN_SPARSE);
+        values.remove(Downloads.Impl.COLUMN_RANGE_START);
+        values.remove(Downloads.Impl.COLUMN_RANGE_END);
+        values.remove(Downloads.Impl.COLUMN_ZIP_ENTRIES);
+        values.remove(Downloads.Impl.COLUMN_HASH_ALGORITHM);
+        values.remove(Downloads.Impl.COLUMN_HASH_BLOCK_SIZE);
+        values.remove(Downloads.Impl.COLUMN_BLOCK_HASHES);
+        values.remove(Downloads.Impl.COLUMN_QUOTA);
+        values.remove(Downloads.Impl.COLUMN_QUEUE_OVER_QUOTA);
         Iterator<Map.Entry<String, Object>> iterator = values.valueSet().iterator();
         while (iterator.hasNext()) {
             String key = iterator.next().getKey();
@@ -843,8 +788,24 @@ public final class DownloadProvider extends ContentProvider {
             logVerboseQueryInfo(projection, selection, selectionArgs, sort, db);
         }
 
-        Cursor ret = db.query(DB_TABLE, projection, fullSelection.getSelection(),
-                fullSelection.getParameters(), null, null, sort);
+        // A single download is cheap to look up in the archive as well, so
+        // files of archived downloads can still be opened
+        final boolean withArchive = match == MY_DOWNLOADS_ID || match == ALL_DOWNLOADS_ID
+                || match == PUBLIC_DOWNLOAD_ID
+                || Boolean.parseBoolean(uri.getQueryParameter(QUERY_PARAM_ARCHIVED));
+        final String limit = uri.getQueryParameter(QUERY_PARAM_LIMIT);
+        if (limit != null) {
+            try {
+                if (Integer.parseInt(limit) <= 0) {
+                    throw new IllegalArgumentException("Invalid limit: " + limit);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid limit: " + limit);
+            }
+        }
+        Cursor ret = db.query(withArchive ? DOWNLOADS_WITH_ARCHIVE : DOWNLOADS_VIEW, projection,
+                fullSelection.getSelection(), fullSelection.getParameters(), null, null, sort,
+                limit);
 
         if (ret != null) {
             ret.setNotificationUri(getContext().getContentResolver(), uri);
@@ -908,6 +869,20 @@ public final class DownloadProvider extends ContentProvider {
         return uri.getPathSegments().get(1);
     }
 
+    /**
+     * Reject malformed request headers up front, before a download is queued
+     * for a later group commit.
+     */
+    private static void checkRequestHeaders(ContentValues values) {
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            if (entry.getKey().startsWith(Downloads.Impl.RequestHeaders.INSERT_KEY_PREFIX)
+                    && !entry.getValue().toString().contains(":")) {
+                throw new IllegalArgumentException(
+                        "Invalid HTTP header line: " + entry.getValue());
+            }
+        }
+    }
+
     /**
      * Insert request headers for a download into the DB.
      */
@@ -941,23 +916,6 @@ public final class DownloadProvider extends ContentProvider {
                         null, null, null, null);
     }
 
-    /**
-     * Delete request headers for downloads matching the given query.
-     */
-    private void deleteRequestHeaders(SQLiteDatabase db, String where, String[] whereArgs) {
-        String[] projection = new String[] {Downloads.Impl._ID};
-        Cursor cursor = db.query(DB_TABLE, projection, where, whereArgs, null, null, null, null);
-        try {
-            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                long id = cursor.getLong(0);
-                String idWhere = Downloads.Impl.RequestHeaders.COLUMN_DOWNLOAD_ID + "=" + id;
-                db.delete(Downloads.Impl.RequestHeaders.HEADERS_DB_TABLE, idWhere, null);
-            }
-        } finally {
-            cursor.close();
-        }
-    }
-
     /**
      * @return true if we should restrict the columns readable by this caller
      */
@@ -982,6 +940,11 @@ public final class DownloadProvider extends ContentProvider {
         int count;
         boolean startService = false;
 
+        // Progress checkpoints from our own engine don't need the service
+        final boolean progressOnly = Binder.getCallingPid() == Process.myPid()
+                && Integer.valueOf(Downloads.Impl.LAST_UPDATESRC_DONT_NOTIFY_DOWNLOADSVC).equals(
+                        values.getAsInteger(Downloads.Impl.COLUMN_LAST_UPDATESRC));
+
         if (values.containsKey(Downloads.Impl.COLUMN_DELETED)) {
             if (values.getAsInteger(Downloads.Impl.COLUMN_DELETED) == 1) {
                 // some rows are to be 'deleted'. need to start DownloadService.
@@ -1039,7 +1002,10 @@ public final class DownloadProvider extends ContentProvider {
             case ALL_DOWNLOADS_ID:
                 SqlSelection selection = getWhereClause(uri, where, whereArgs, match);
                 if (filteredValues.size() > 0) {
-                    count = db.update(DB_TABLE, filteredValues, selection.getSelection(),
+                    filteredValues.put(Downloads.Impl.COLUMN_LAST_UPDATESRC, progressOnly
+                            ? Downloads.Impl.LAST_UPDATESRC_DONT_NOTIFY_DOWNLOADSVC
+                            : Downloads.Impl.LAST_UPDATESRC_NOT_RELEVANT);
+                    count = mDao.updateDownloads(filteredValues, selection.getSelection(),
                             selection.getParameters());
                 } else {
                     count = 0;
@@ -1051,30 +1017,298 @@ public final class DownloadProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Cannot update URI: " + uri);
         }
 
-        notifyContentChanged(uri, match);
+        // Let observers learn right away that a download finished
+        final Integer status = filteredValues.getAsInteger(Downloads.Impl.COLUMN_STATUS);
+        final boolean completed = status != null && Downloads.Impl.isStatusCompleted(status);
+        notifyContentChanged(uri, match, !progressOnly, completed);
         if (startService) {
-            Context context = getContext();
-            context.startService(new Intent(context, DownloadService.class));
+            startDownloadService();
         }
         return count;
     }
 
+    /**
+     * Apply all operations in a single transaction. Change notifications and
+     * the {@link DownloadService} start are sent once for the whole batch,
+     * after it commits.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final BatchState batch = new BatchState();
+        mBatch.set(batch);
+        boolean success = false;
+        DownloadsDao.beginTransaction(db);
+        try {
+            final ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            success = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            mBatch.remove();
+            if (success && batch.mNotify) {
+                notifyContentChanged(Downloads.Impl.CONTENT_URI, MY_DOWNLOADS, true,
+                        batch.mNotifyNow);
+            }
+            if (success && batch.mStartService) {
+                startDownloadService();
+            }
+        }
+    }
+
+    /**
+     * Handles asynchronous enqueue: {@link #METHOD_ENQUEUE_ASYNC} validates
+     * a download on the caller's thread and returns its reserved ID at once,
+     * leaving the write to a group commit shared with every other download
+     * queued within {@link Constants#ENQUEUE_COMMIT_DELAY}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (METHOD_ENQUEUE_ASYNC.equals(method)) {
+            final ContentValues values = (extras != null)
+                    ? extras.<ContentValues>getParcelable(EXTRA_VALUES) : null;
+            if (values == null) {
+                throw new IllegalArgumentException("Missing download values");
+            }
+            checkRequestHeaders(values);
+            final ContentValues filteredValues = filterInsertValues(values);
+            final long id = reserveDownloadId();
+            filteredValues.put(Downloads.Impl._ID, id);
+
+            final int pending;
+            synchronized (mPendingLock) {
+                mPendingInserts.add(new PendingInsert(filteredValues, values));
+                mPendingIds.add(id);
+                pending = mPendingInserts.size();
+            }
+            if (pending == 1) {
+                mHandler.postDelayed(mGroupCommit, Constants.ENQUEUE_COMMIT_DELAY);
+            } else if (pending == Constants.ENQUEUE_COMMIT_MAX) {
+                mHandler.removeCallbacks(mGroupCommit);
+                mHandler.post(mGroupCommit);
+            }
+
+            final Bundle result = new Bundle();
+            result.putLong(EXTRA_ID, id);
+            return result;
+
+        } else if (METHOD_AWAIT_ENQUEUE.equals(method)) {
+            final long id = Long.parseLong(arg);
+            final long timeout = (extras != null) ? extras.getLong(EXTRA_TIMEOUT, -1) : -1;
+            final Bundle result = new Bundle();
+            final boolean committed = awaitCommit(id, timeout);
+            result.putBoolean(EXTRA_COMMITTED, committed);
+            if (committed) {
+                final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+                result.putBoolean(EXTRA_INSERTED, DatabaseUtils.queryNumEntries(db, DB_TABLE,
+                        Downloads.Impl._ID + " = ? AND " + Constants.UID + " = ?",
+                        new String[] {
+                                String.valueOf(id), String.valueOf(Binder.getCallingUid())
+                        }) > 0);
+            }
+            return result;
+
+        } else if (METHOD_SET_NOTIFY_INTERVAL.equals(method)) {
+            if (arg == null || extras == null) {
+                throw new IllegalArgumentException("Missing URI or interval");
+            }
+            mDao.setMinNotifyInterval(Uri.parse(arg), extras.getLong(EXTRA_INTERVAL));
+            return null;
+
+        } else if (METHOD_SET_ARCHIVE_AGE.equals(method)) {
+            if (extras == null) {
+                throw new IllegalArgumentException("Missing archive age");
+            }
+            getContext().getSharedPreferences(Constants.PREFS_NAME, Context.MODE_PRIVATE).edit()
+                    .putLong(Constants.PREF_ARCHIVE_AGE, extras.getLong(EXTRA_AGE)).apply();
+            return null;
+
+        } else if (METHOD_GET_USAGE.equals(method)) {
+            final String owner = (arg != null) ? arg : String.valueOf(Binder.getCallingUid());
+            final Bundle result = new Bundle();
+            result.putLong(EXTRA_BYTES, mDao.getOwnerUsage(owner));
+            return result;
+
+        } else if (METHOD_GET_SUMMARY.equals(method)) {
+            final String owner = (arg != null) ? arg : String.valueOf(Binder.getCallingUid());
+            final Cursor cursor = mDao.querySummary(owner);
+            try {
+                final int rows = cursor.getCount();
+                final int[] statusClasses = new int[rows];
+                final long[] counts = new long[rows];
+                final long[] bytes = new long[rows];
+                final long[] remaining = new long[rows];
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    statusClasses[i] = cursor.getInt(0);
+                    counts[i] = cursor.getLong(1);
+                    bytes[i] = cursor.getLong(2);
+                    remaining[i] = cursor.getLong(3);
+                }
+                final Bundle result = new Bundle();
+                result.putIntArray(EXTRA_STATUS_CLASSES, statusClasses);
+                result.putLongArray(EXTRA_COUNTS, counts);
+                result.putLongArray(EXTRA_BYTES, bytes);
+                result.putLongArray(EXTRA_REMAINING, remaining);
+                return result;
+            } finally {
+                cursor.close();
+            }
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Invoke {@link #call} on the provider of this process, which the
+     * manifest keeps in the app's own process. Stands in for
+     * {@link android.content.ContentResolver#call} before Honeycomb.
+     */
+    static Bundle callInProcess(String method, String arg, Bundle extras) {
+        final DownloadProvider provider = sInstance;
+        if (provider == null) {
+            throw new IllegalStateException("DownloadProvider isn't created yet");
+        }
+        return provider.call(method, arg, extras);
+    }
+
+    /**
+     * Write every queued download in a single transaction, then notify and
+     * start {@link DownloadService} once for the whole group.
+     */
+    private void commitPendingInserts() {
+        final ArrayList<PendingInsert> batch;
+        synchronized (mPendingLock) {
+            batch = mPendingInserts;
+            mPendingInserts = new ArrayList<PendingInsert>();
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        DownloadsDao.beginTransaction(db);
+        try {
+            for (PendingInsert insert : batch) {
+                if (insertDownload(db, insert.mFilteredValues, insert.mValues) == -1) {
+                    Log.w(Constants.TAG, "couldn't insert download "
+                            + insert.mFilteredValues.getAsLong(Downloads.Impl._ID));
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            synchronized (mPendingLock) {
+                for (PendingInsert insert : batch) {
+                    mPendingIds.remove(insert.mFilteredValues.getAsLong(Downloads.Impl._ID));
+                }
+                mPendingLock.notifyAll();
+            }
+        }
+
+        if (Constants.LOGV) {
+            Log.v(Constants.TAG, "group commit of " + batch.size() + " downloads");
+        }
+        notifyContentChanged(Downloads.Impl.CONTENT_URI, MY_DOWNLOADS);
+        startDownloadService();
+    }
+
+    /**
+     * Wait until the given download is no longer queued for a group commit.
+     *
+     * @param timeout milliseconds to wait, or -1 for no limit
+     * @return if the download was committed, or was never queued.
+     */
+    private boolean awaitCommit(long id, long timeout) {
+        final long deadline = SystemClock.elapsedRealtime() + timeout;
+        synchronized (mPendingLock) {
+            while (mPendingIds.contains(id)) {
+                long wait = 0;
+                if (timeout >= 0) {
+                    wait = deadline - SystemClock.elapsedRealtime();
+                    if (wait <= 0) {
+                        return false;
+                    }
+                }
+                try {
+                    mPendingLock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Hand out the next download ID. Every insert takes its ID from here, so
+     * that IDs reserved for queued downloads never collide with others.
+     * Only blocks on the database when called before {@link #onCreate}'s
+     * background load has finished.
+     */
+    private long reserveDownloadId() {
+        synchronized (mIdLock) {
+            loadNextDownloadIdLocked();
+            return mNextDownloadId++;
+        }
+    }
+
+    @GuardedBy("mIdLock")
+    private void loadNextDownloadIdLocked() {
+        if (mNextDownloadId != -1) {
+            return;
+        }
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        final long maxId = DatabaseUtils.longForQuery(db,
+                "SELECT MAX(" + Downloads.Impl._ID + ") FROM " + DB_TABLE, null);
+        // AUTOINCREMENT never reuses IDs, even of deleted rows
+        final long maxSeq = DatabaseUtils.longForQuery(db,
+                "SELECT MAX(seq) FROM sqlite_sequence WHERE name = ?",
+                new String[] { DB_TABLE });
+        mNextDownloadId = Math.max(maxId, maxSeq) + 1;
+    }
+
+    private void startDownloadService() {
+        final BatchState batch = mBatch.get();
+        if (batch != null) {
+            batch.mStartService = true;
+            return;
+        }
+        final Context context = getContext();
+        context.startService(new Intent(context, DownloadService.class));
+    }
+
     /**
      * Notify of a change through both URIs (/my_downloads and /all_downloads)
      * @param uri either URI for the changed download(s)
      * @param uriMatch the match ID from {@link #sURIMatcher}
      */
     private void notifyContentChanged(final Uri uri, int uriMatch) {
-        Long downloadId = null;
+        notifyContentChanged(uri, uriMatch, true, false);
+    }
+
+    /**
+     * Notify of a change through both URIs (/my_downloads and /all_downloads),
+     * at most once per minimum interval of each URI.
+     * @param notifyService whether {@link DownloadService} should act on it
+     * @param immediate whether to bypass the minimum interval
+     */
+    private void notifyContentChanged(final Uri uri, int uriMatch, boolean notifyService,
+            boolean immediate) {
+        final BatchState batch = mBatch.get();
+        if (batch != null) {
+            // Sent once for the whole batch by applyBatch()
+            batch.mNotify = true;
+            batch.mNotifyNow |= immediate;
+            return;
+        }
+
+        long downloadId = -1;
         if (uriMatch == MY_DOWNLOADS_ID || uriMatch == ALL_DOWNLOADS_ID) {
             downloadId = Long.parseLong(getDownloadIdFromUri(uri));
         }
-        for (Uri uriToNotify : BASE_URIS) {
-            if (downloadId != null) {
-                uriToNotify = ContentUris.withAppendedId(uriToNotify, downloadId);
-            }
-            getContext().getContentResolver().notifyChange(uriToNotify, null);
-        }
+        mDao.notifyChange(downloadId, notifyService, immediate);
     }
 
     private SqlSelection getWhereClause(final Uri uri, final String where, final String[] whereArgs,
@@ -1106,17 +1340,21 @@ public final class DownloadProvider extends ContentProvider {
             case ALL_DOWNLOADS:
             case ALL_DOWNLOADS_ID:
                 SqlSelection selection = getWhereClause(uri, where, whereArgs, match);
-                deleteRequestHeaders(db, selection.getSelection(), selection.getParameters());
-
-                final Cursor cursor = db.query(DB_TABLE, new String[] {
-                        Downloads.Impl._ID, Downloads.Impl._DATA
+                final Cursor cursor = db.query(DOWNLOADS_WITH_ARCHIVE, new String[] {
+                        Downloads.Impl._ID, Downloads.Impl._DATA, Downloads.Impl.COLUMN_ZIP_ENTRIES
                 }, selection.getSelection(), selection.getParameters(), null, null, null);
                 try {
                     while (cursor.moveToNext()) {
                         final String path = cursor.getString(1);
+                        final String zipEntries = cursor.getString(2);
                         if (!TextUtils.isEmpty(path)) {
                             final File file = new File(path);
-                            if (PermissionChecker.isFileCanDelate(getContext(), file)) {
+                            if (!TextUtils.isEmpty(zipEntries)) {
+                                // Only remove what we extracted, never the whole directory
+                                Log.v(Constants.TAG, "Deleting entries in " + file
+                                        + " via provider delete");
+                                RemoteZipExtractor.deleteEntries(file, zipEntries.split("\\n"));
+                            } else if (PermissionChecker.isFileCanDelate(getContext(), file)) {
                                 Log.v(Constants.TAG, "Deleting " + file + " via provider delete");
                                 file.delete();
                             }
@@ -1126,7 +1364,12 @@ public final class DownloadProvider extends ContentProvider {
                     IoUtils.closeQuietly(cursor);
                 }
 
-                count = db.delete(DB_TABLE, selection.getSelection(), selection.getParameters());
+                count = db.delete(DB_TABLE,
+                        DownloadsDao.whereInView(selection.getSelection()),
+                        selection.getParameters());
+                // Archived downloads can't be marked deleted, so they go at once
+                count += db.delete(ARCHIVE_TABLE, selection.getSelection(),
+                        selection.getParameters());
                 break;
 
             default:
@@ -1151,6 +1394,7 @@ public final class DownloadProvider extends ContentProvider {
                         Downloads.Impl.COLUMN_DESTINATION, Downloads.Impl.COLUMN_MEDIA_SCANNED }, null,
                 null, null);
         final String path;
+        final boolean isSuccess;
         final boolean shouldScan;
         try {
             int count = (cursor != null) ? cursor.getCount() : 0;
@@ -1168,7 +1412,8 @@ public final class DownloadProvider extends ContentProvider {
                 final int mediaScanned = cursor.getInt(3);
 
                 path = cursor.getString(0);
-                shouldScan = Downloads.Impl.isStatusSuccess(status) && (
+                isSuccess = Downloads.Impl.isStatusSuccess(status);
+                shouldScan = isSuccess && (
                         destination == Downloads.Impl.DESTINATION_EXTERNAL
                                 || destination == Downloads.Impl.DESTINATION_FILE_URI
                                 || destination == Downloads.Impl.DESTINATION_NON_DOWNLOADMANAGER_DOWNLOAD)
@@ -1196,7 +1441,47 @@ public final class DownloadProvider extends ContentProvider {
         if (mode.contains("+")) {
             fileMode |= ParcelFileDescriptor.MODE_APPEND;
         }
-        return ParcelFileDescriptor.open(file, fileMode);
+        if (isSuccess && fileMode == ParcelFileDescriptor.MODE_READ_ONLY) {
+            noteAccess(getDownloadIdFromUri(uri));
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return ParcelFileDescriptor.open(file, fileMode);
+        }
+
+        // Keep cache eviction away from the file until the caller closes it
+        StorageUtils.noteFileOpened(path);
+        try {
+            return ParcelFileDescriptor.open(file, fileMode, mHandler,
+                    new ParcelFileDescriptor.OnCloseListener() {
+                        @Override
+                        public void onClose(IOException e) {
+                            StorageUtils.noteFileClosed(path);
+                        }
+                    });
+        } catch (IOException e) {
+            StorageUtils.noteFileClosed(path);
+            if (e instanceof FileNotFoundException) {
+                throw (FileNotFoundException) e;
+            }
+            throw new FileNotFoundException(e.toString());
+        }
+    }
+
+    /**
+     * Record that a finished download was opened for reading, which orders
+     * the least recently used downloads for cache eviction. The change log
+     * and {@link DownloadService} don't need to hear about it.
+     */
+    private void noteAccess(String id) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final String where = Downloads.Impl._ID + " = ?";
+        final String[] whereArgs = new String[] { id };
+        final ContentValues values = new ContentValues();
+        values.put(Constants.LAST_ACCESS, System.currentTimeMillis());
+        db.update(ARCHIVE_TABLE, values, where, whereArgs);
+        values.put(Downloads.Impl.COLUMN_LAST_UPDATESRC,
+                Downloads.Impl.LAST_UPDATESRC_DONT_NOTIFY_DOWNLOADSVC);
+        db.update(DB_TABLE, values, where, whereArgs);
     }
 
     @Override
@@ -1206,7 +1491,7 @@ public final class DownloadProvider extends ContentProvider {
 
         final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
         final long modifiedAfter = System.currentTimeMillis() - DateUtils.HOUR_IN_MILLIS;
-        final Cursor cursor = db.query(DB_TABLE, null,
+        final Cursor cursor = db.query(DOWNLOADS_VIEW, null,
                 Downloads.Impl.COLUMN_LAST_MODIFICATION + ">" + modifiedAfter, null, null, null,
                 Downloads.Impl._ID + " ASC");
         try {
@@ -1275,6 +1560,13 @@ public final class DownloadProvider extends ContentProvider {
         }
     }
 
+    private static final void copyLong(String key, ContentValues from, ContentValues to) {
+        Long l = from.getAsLong(key);
+        if (l != null) {
+            to.put(key, l);
+        }
+    }
+
     private static final void copyBoolean(String key, ContentValues from, ContentValues to) {
         Boolean b = from.getAsBoolean(key);
         if (b != null) {
@@ -1289,6 +1581,13 @@ public final class DownloadProvider extends ContentProvider {
         }
     }
 
+    private static final void copyBlob(String key, ContentValues from, ContentValues to) {
+        byte[] b = from.getAsByteArray(key);
+        if (b != null) {
+            to.put(key, b);
+        }
+    }
+
     private static final void copyStringWithDefault(String key, ContentValues from,
             ContentValues to, String defaultValue) {
         copyString(key, from, to);
@@ -71,6 +71,11 @@ public class DownloadReceiver extends BroadcastReceiver {
         } else if (Constants.ACTION_RETRY.equals(action)) {
             startService(context);
 
+        } else if (Constants.ACTION_CLEANUP.equals(action)) {
+            final Intent cleanup = new Intent(context, DownloadService.class);
+            cleanup.setAction(Constants.ACTION_CLEANUP);
+            context.startService(cleanup);
+
         } else if (Constants.ACTION_OPEN.equals(action)
                 || Constants.ACTION_LIST.equals(action)
                 || Constants.ACTION_HIDE.equals(action)) {
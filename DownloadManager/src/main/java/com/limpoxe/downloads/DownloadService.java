@@ -24,12 +24,14 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -92,6 +94,13 @@ public class DownloadService extends Service {
     @GuardedBy("mDownloads")
     private final Map<Long, DownloadInfo> mDownloads = new HashMap<Long, DownloadInfo>();
 
+    /**
+     * Last sequence of the provider's change log folded into
+     * {@link #mDownloads}, or -1 until the first full scan.
+     */
+    @GuardedBy("mDownloads")
+    private long mChangeSequence = -1;
+
     private final ExecutorService mExecutor = buildDownloadExecutor();
 
     private static ExecutorService buildDownloadExecutor() {
@@ -177,9 +186,26 @@ public class DownloadService extends Service {
         mNotifier.cancelAll();
 
         mObserver = new DownloadManagerContentObserver();
-        getContentResolver().registerContentObserver(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
-                true, mObserver);
+        getContentResolver().registerContentObserver(DownloadProvider.SERVICE_NOTIFY_URI,
+                false, mObserver);
+
+        scheduleCleanup();
+    }
 
+    /**
+     * Schedule the daily cleanup job unless it is already pending. Replacing
+     * it every time the service starts could keep pushing it back forever.
+     */
+    private void scheduleCleanup() {
+        final Intent intent = new Intent(Constants.ACTION_CLEANUP);
+        intent.setClass(this, DownloadReceiver.class);
+        if (PendingIntent.getBroadcast(this, CLEANUP_JOB_ID, intent,
+                PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        mAlarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + CLEANUP_JOB_PERIOD, CLEANUP_JOB_PERIOD,
+                PendingIntent.getBroadcast(this, CLEANUP_JOB_ID, intent, 0));
     }
 
     @Override
@@ -189,12 +215,21 @@ public class DownloadService extends Service {
             Log.v(Constants.TAG, "Service onStart");
         }
         mLastStartId = startId;
+        if (intent != null && Constants.ACTION_CLEANUP.equals(intent.getAction())) {
+            // Runs ahead of the update pass, which stops the service after it
+            mUpdateHandler.sendEmptyMessage(MSG_CLEANUP);
+        }
         enqueueUpdate();
         return returnValue;
     }
 
     @Override
     public void onDestroy() {
+        synchronized (mDownloads) {
+            for (DownloadInfo info : mDownloads.values()) {
+                DownloadInfo.unregister(info);
+            }
+        }
         getContentResolver().unregisterContentObserver(mObserver);
         mUpdateThread.quit();
         if (Constants.LOGVV) {
@@ -226,12 +261,18 @@ public class DownloadService extends Service {
 
     private static final int MSG_UPDATE = 1;
     private static final int MSG_FINAL_UPDATE = 2;
+    private static final int MSG_CLEANUP = 3;
 
     private Handler.Callback mUpdateCallback = new Handler.Callback() {
         @Override
         public boolean handleMessage(Message msg) {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
+            if (msg.what == MSG_CLEANUP) {
+                cleanup();
+                return true;
+            }
+
             final int startId = msg.arg1;
             if (DEBUG_LIFECYCLE) Log.v(TAG, "Updating for startId " + startId);
 
@@ -290,58 +331,69 @@ public class DownloadService extends Service {
     private boolean updateLocked() {
         final long now = System.currentTimeMillis();
 
-        boolean isActive = false;
-        long nextActionMillis = Long.MAX_VALUE;
-
-        final Set<Long> staleIds = new HashSet<Long>(mDownloads.keySet());
-
-        final ContentResolver resolver = getContentResolver();
-        final Cursor cursor = resolver.query(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
-                null, null, null, null);
-        try {
-            final DownloadInfo.Reader reader = new DownloadInfo.Reader(resolver, cursor);
-            final int idColumn = cursor.getColumnIndexOrThrow(Downloads.Impl._ID);
-            while (cursor.moveToNext()) {
-                final long id = cursor.getLong(idColumn);
-                staleIds.remove(id);
+        final DownloadsDao dao = DownloadsDao.getInstance(this);
+        final DownloadsDao.Changes changes = dao.getChanges(mChangeSequence);
+        if (mChangeSequence < 0 || changes.mOverflow) {
+            // First pass, or we fell behind the change log; rescan everything
+            final Set<Long> staleIds = new HashSet<Long>(mDownloads.keySet());
+            reconcileLocked(dao, dao.queryDownloads(null, null), staleIds);
 
-                DownloadInfo info = mDownloads.get(id);
-                if (info != null) {
-                    updateDownload(reader, info, now);
-                } else {
-                    info = insertDownloadLocked(reader, now);
+            // Clean up stale downloads that disappeared
+            for (Long id : staleIds) {
+                deleteDownloadLocked(id);
+            }
+        } else {
+            final long[] ids = changes.mIds;
+            for (int start = 0; start < ids.length;
+                    start += DownloadManager.MAX_IDS_PER_STATEMENT) {
+                final long[] chunk = Arrays.copyOfRange(ids, start,
+                        Math.min(start + DownloadManager.MAX_IDS_PER_STATEMENT, ids.length));
+                final Set<Long> staleIds = new HashSet<Long>();
+                for (long id : chunk) {
+                    if (mDownloads.containsKey(id)) {
+                        staleIds.add(id);
+                    }
                 }
+                reconcileLocked(dao, dao.queryDownloads(DownloadManager.getWhereClauseForIds(chunk),
+                        DownloadManager.getWhereArgsForIds(chunk)), staleIds);
 
-                if (info.mDeleted) {
-                    // Delete download if requested, but only after cleaning up
-                    if (!TextUtils.isEmpty(info.mMediaProviderUri)) {
-                        resolver.delete(Uri.parse(info.mMediaProviderUri), null, null);
-                    }
+                for (Long id : staleIds) {
+                    deleteDownloadLocked(id);
+                }
+            }
+        }
+        mChangeSequence = changes.mSequence;
 
-                    deleteFileIfExists(info.mFileName);
-                    resolver.delete(info.getAllDownloadsUri(), null, null);
+        boolean isActive = false;
+        long nextActionMillis = Long.MAX_VALUE;
+        final List<DownloadInfo> idleFills = new ArrayList<DownloadInfo>();
 
-                } else {
-                    // Kick off download task if ready
-                    final boolean activeDownload = info.startDownloadIfReady(mExecutor);
+        for (DownloadInfo info : mDownloads.values()) {
+            if (info.mDeleted) {
+                // Waiting for its row to go away
+            } else if (info.mSparse == Downloads.Impl.SPARSE_FILL_WHEN_IDLE) {
+                // Background fills wait until regular downloads drain
+                idleFills.add(info);
 
-                    if (DEBUG_LIFECYCLE && (activeDownload)) {
-                        Log.v(TAG, "Download " + info.mId + ": activeDownload=" + activeDownload);
-                    }
+            } else {
+                // Kick off download task if ready
+                final boolean activeDownload = info.startDownloadIfReady(mExecutor);
 
-                    isActive |= activeDownload;
+                if (DEBUG_LIFECYCLE && (activeDownload)) {
+                    Log.v(TAG, "Download " + info.mId + ": activeDownload=" + activeDownload);
                 }
 
-                // Keep track of nearest next action
-                nextActionMillis = Math.min(info.nextActionMillis(now), nextActionMillis);
+                isActive |= activeDownload;
             }
-        } finally {
-            cursor.close();
+
+            // Keep track of nearest next action
+            nextActionMillis = Math.min(info.nextActionMillis(now), nextActionMillis);
         }
 
-        // Clean up stale downloads that disappeared
-        for (Long id : staleIds) {
-            deleteDownloadLocked(id);
+        if (!isActive) {
+            for (DownloadInfo info : idleFills) {
+                isActive |= info.startDownloadIfReady(mExecutor);
+            }
         }
 
         // Update notifications visible to user
@@ -363,13 +415,83 @@ public class DownloadService extends Service {
         return isActive;
     }
 
+    /**
+     * Move downloads that finished long ago to the archive and give the
+     * space they leave behind back to the file system.
+     */
+    private void cleanup() {
+        final DownloadsDao dao = DownloadsDao.getInstance(this);
+        final long age = getSharedPreferences(Constants.PREFS_NAME, Context.MODE_PRIVATE)
+                .getLong(Constants.PREF_ARCHIVE_AGE, Constants.DEFAULT_ARCHIVE_AGE);
+        if (age > 0) {
+            synchronized (mDownloads) {
+                // Forget them before the next pass takes them for deleted
+                // downloads and removes their files
+                for (long id : dao.archiveDownloads(System.currentTimeMillis() - age)) {
+                    final DownloadInfo info = mDownloads.remove(id);
+                    if (info != null) {
+                        DownloadInfo.unregister(info);
+                    }
+                }
+            }
+        }
+
+        try {
+            dao.getOpenHelper().compact();
+        } catch (SQLiteException e) {
+            // Busy with other work; the next run will catch up
+            Log.w(TAG, "Failed to compact database", e);
+        }
+    }
+
+    /**
+     * Bring local copies up to date with the rows in the given cursor, which
+     * is closed afterwards, removing every row seen from {@code staleIds}.
+     */
+    private void reconcileLocked(DownloadsDao dao, Cursor cursor, Set<Long> staleIds) {
+        final ContentResolver resolver = getContentResolver();
+        try {
+            final DownloadInfo.Reader reader = new DownloadInfo.Reader(dao, cursor);
+            final int idColumn = cursor.getColumnIndexOrThrow(Downloads.Impl._ID);
+            final List<DownloadInfo> inserted = new ArrayList<DownloadInfo>();
+            while (cursor.moveToNext()) {
+                final long id = cursor.getLong(idColumn);
+                staleIds.remove(id);
+
+                DownloadInfo info = mDownloads.get(id);
+                if (info != null) {
+                    updateDownload(reader, info);
+                } else {
+                    info = insertDownloadLocked(reader);
+                    inserted.add(info);
+                }
+
+                if (info.mDeleted) {
+                    // Delete download if requested, but only after cleaning up
+                    if (!TextUtils.isEmpty(info.mMediaProviderUri)) {
+                        resolver.delete(Uri.parse(info.mMediaProviderUri), null, null);
+                    }
+
+                    deleteFileIfExists(info.mFileName);
+                    resolver.delete(info.getAllDownloadsUri(), null, null);
+                }
+            }
+
+            // Headers are only needed once a download starts, after this pass
+            reader.readRequestHeaders(inserted);
+        } finally {
+            cursor.close();
+        }
+    }
+
     /**
      * Keeps a local copy of the info about a download, and initiates the
      * download if appropriate.
      */
-    private DownloadInfo insertDownloadLocked(DownloadInfo.Reader reader, long now) {
-        final DownloadInfo info = reader.newDownloadInfo(this, mNotifier);
+    private DownloadInfo insertDownloadLocked(DownloadInfo.Reader reader) {
+        final DownloadInfo info = reader.newDownloadInfoWithoutHeaders(this, mNotifier);
         mDownloads.put(info.mId, info);
+        DownloadInfo.register(info);
 
         if (Constants.LOGVV) {
             Log.v(Constants.TAG, "processing inserted download " + info.mId);
@@ -381,7 +503,7 @@ public class DownloadService extends Service {
     /**
      * Updates the local copy of the info about a download.
      */
-    private void updateDownload(DownloadInfo.Reader reader, DownloadInfo info, long now) {
+    private void updateDownload(DownloadInfo.Reader reader, DownloadInfo info) {
         reader.updateFromDatabase(info);
         if (Constants.LOGVV) {
             Log.v(Constants.TAG, "processing updated download " + info.mId +
@@ -404,6 +526,7 @@ public class DownloadService extends Service {
             deleteFileIfExists(info.mFileName);
         }
         mDownloads.remove(info.mId);
+        DownloadInfo.unregister(info);
     }
 
     private void deleteFileIfExists(String path) {
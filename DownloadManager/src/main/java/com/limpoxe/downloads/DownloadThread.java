@@ -26,6 +26,7 @@ import android.os.PowerManager;
 import android.os.Process;
 import android.os.SystemClock;
 import android.system.Os;
+import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
 
@@ -40,11 +41,14 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.util.List;
 
 import static android.text.format.DateUtils.SECOND_IN_MILLIS;
 import static com.limpoxe.downloads.Constants.TAG;
@@ -98,8 +102,9 @@ public class DownloadThread implements Runnable {
 
     /**
      * Info object that should be treated as read-only. Any potentially mutated
-     * fields are tracked in {@link #mInfoDelta}. If a field exists in
-     * {@link #mInfoDelta}, it must not be read from {@link #mInfo}.
+     * fields are tracked in {@link #mInfoDelta}, and published back as they
+     * are written to the provider. If a field exists in {@link #mInfoDelta},
+     * it must not be read from {@link #mInfo}.
      */
     private final DownloadInfo mInfo;
     private final DownloadInfoDelta mInfoDelta;
@@ -123,6 +128,12 @@ public class DownloadThread implements Runnable {
 
         public String mErrorMsg;
 
+        /**
+         * Values as last written in full, telling whether a checkpoint can
+         * take the short path of {@link #writeProgressToDatabaseOrThrow()}.
+         */
+        private DownloadInfoDelta mWritten;
+
         public DownloadInfoDelta(DownloadInfo info) {
             mUri = info.mUri;
             mFileName = info.mFileName;
@@ -133,9 +144,39 @@ public class DownloadThread implements Runnable {
             mTotalBytes = info.mTotalBytes;
             mCurrentBytes = info.mCurrentBytes;
             mETag = info.mETag;
+            mWritten = new DownloadInfoDelta(this);
+        }
+
+        private DownloadInfoDelta(DownloadInfoDelta other) {
+            mUri = other.mUri;
+            mFileName = other.mFileName;
+            mMimeType = other.mMimeType;
+            mStatus = other.mStatus;
+            mNumFailed = other.mNumFailed;
+            mRetryAfter = other.mRetryAfter;
+            mTotalBytes = other.mTotalBytes;
+            mCurrentBytes = other.mCurrentBytes;
+            mETag = other.mETag;
+            mErrorMsg = other.mErrorMsg;
+        }
+
+        /**
+         * Returns whether anything besides current bytes and status changed
+         * since the last full write.
+         */
+        private boolean hasChangedSinceWritten() {
+            return mWritten == null
+                    || !TextUtils.equals(mUri, mWritten.mUri)
+                    || !TextUtils.equals(mFileName, mWritten.mFileName)
+                    || !TextUtils.equals(mMimeType, mWritten.mMimeType)
+                    || mNumFailed != mWritten.mNumFailed
+                    || mRetryAfter != mWritten.mRetryAfter
+                    || mTotalBytes != mWritten.mTotalBytes
+                    || !TextUtils.equals(mETag, mWritten.mETag)
+                    || !TextUtils.equals(mErrorMsg, mWritten.mErrorMsg);
         }
 
-        private ContentValues buildContentValues() {
+        private ContentValues buildContentValues(long lastMod) {
             final ContentValues values = new ContentValues();
 
             values.put(Downloads.Impl.COLUMN_URI, mUri);
@@ -147,8 +188,11 @@ public class DownloadThread implements Runnable {
             values.put(Downloads.Impl.COLUMN_TOTAL_BYTES, mTotalBytes);
             values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, mCurrentBytes);
             values.put(Constants.ETAG, mETag);
+            if (mVerifier != null) {
+                values.put(Downloads.Impl.COLUMN_VERIFIED_MAP, mVerifier.getVerifiedMap());
+            }
 
-            values.put(Downloads.Impl.COLUMN_LAST_MODIFICATION, System.currentTimeMillis());
+            values.put(Downloads.Impl.COLUMN_LAST_MODIFICATION, lastMod);
             values.put(Downloads.Impl.COLUMN_ERROR_MSG, mErrorMsg);
 
             return values;
@@ -158,8 +202,12 @@ public class DownloadThread implements Runnable {
          * Blindly push update of current delta values to provider.
          */
         public void writeToDatabase() {
-            mContext.getContentResolver().update(mInfo.getAllDownloadsUri(), buildContentValues(),
-                    null, null);
+            final long lastMod = System.currentTimeMillis();
+            if (DownloadsDao.getInstance(mContext).update(mId, buildContentValues(lastMod),
+                    false, false) != 0) {
+                mWritten = new DownloadInfoDelta(this);
+                publish(lastMod);
+            }
         }
 
         /**
@@ -167,10 +215,69 @@ public class DownloadThread implements Runnable {
          * that we haven't been paused or deleted.
          */
         public void writeToDatabaseOrThrow() throws StopRequestException {
-            if (mContext.getContentResolver().update(mInfo.getAllDownloadsUri(),
-                    buildContentValues(), Downloads.Impl.COLUMN_DELETED + " == '0'", null) == 0) {
+            writeToDatabaseOrThrow(false);
+        }
+
+        /**
+         * Push a progress checkpoint, queued for the next group commit of
+         * {@link ProgressWriter} when only progress changed.
+         * {@link DownloadService} reads progress from {@link #mInfo}, so these
+         * writes don't wake it up.
+         */
+        public void writeProgressToDatabaseOrThrow() throws StopRequestException {
+            // The verified block map changes with progress, so it needs the
+            // full update
+            if (mVerifier != null || hasChangedSinceWritten()) {
+                writeToDatabaseOrThrow(true);
+                return;
+            }
+
+            final long lastMod = System.currentTimeMillis();
+            if (!DownloadsDao.getInstance(mContext).getProgressWriter().submit(mId,
+                    mCurrentBytes, lastMod, mStatus)) {
+                throw new StopRequestException(STATUS_CANCELED, "Download deleted or missing!");
+            }
+            publish(lastMod);
+        }
+
+        private void writeToDatabaseOrThrow(boolean progressOnly) throws StopRequestException {
+            final long lastMod = System.currentTimeMillis();
+            if (DownloadsDao.getInstance(mContext).update(mId, buildContentValues(lastMod),
+                    true, progressOnly) == 0) {
                 throw new StopRequestException(STATUS_CANCELED, "Download deleted or missing!");
             }
+            mWritten = new DownloadInfoDelta(this);
+            publish(lastMod);
+        }
+
+        /**
+         * Copy the transfer state into the shared {@link DownloadInfo}, which
+         * the service reads instead of the provider while we run. The status is
+         * left alone until {@link #publishStatus()}, since the service may have
+         * canceled us in the meantime.
+         */
+        private void publish(long lastMod) {
+            synchronized (mInfo) {
+                mInfo.mUri = mUri;
+                mInfo.mFileName = mFileName;
+                mInfo.mMimeType = mMimeType;
+                mInfo.mNumFailed = mNumFailed;
+                mInfo.mRetryAfter = mRetryAfter;
+                mInfo.mTotalBytes = mTotalBytes;
+                mInfo.mCurrentBytes = mCurrentBytes;
+                mInfo.mETag = mETag;
+                mInfo.mLastMod = lastMod;
+            }
+        }
+
+        /**
+         * Publish our final status, before it reaches the provider, so that the
+         * update pass triggered by that write already sees us as finished.
+         */
+        public void publishStatus() {
+            synchronized (mInfo) {
+                mInfo.mStatus = mStatus;
+            }
         }
     }
 
@@ -188,6 +295,18 @@ public class DownloadThread implements Runnable {
 
     private int mNetworkType = ConnectManager.TYPE_NONE;
 
+    /**
+     * Bytes to discard from the start of the response body, when a server
+     * answers a range request with the full entity.
+     */
+    private long mSkipBytes = 0;
+
+    /**
+     * Checks blocks against the request's hash manifest as they stream in,
+     * or {@code null} when the request has none.
+     */
+    private BlockVerifier mVerifier;
+
     /** Historical bytes/second speed of this download. */
     private long mSpeed;
     /** Time when current sample started. */
@@ -209,14 +328,6 @@ public class DownloadThread implements Runnable {
     public void run() {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
-        // Skip when download already marked as finished; this download was
-        // probably started again while racing with UpdateThread.
-        if (DownloadInfo.queryDownloadStatus(mContext.getContentResolver(), mId)
-                == STATUS_SUCCESS) {
-            logDebug("Already finished; skipping");
-            return;
-        }
-
         PowerManager.WakeLock wakeLock = null;
         final PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
 
@@ -236,6 +347,7 @@ public class DownloadThread implements Runnable {
             }
 
             executeDownload();
+            verifyBlocks();
 
             mInfoDelta.mStatus = STATUS_SUCCESS;
 
@@ -276,9 +388,11 @@ public class DownloadThread implements Runnable {
                         mInfoDelta.mStatus = STATUS_WAITING_FOR_NETWORK;
                     }
 
-                    if ((mInfoDelta.mETag == null && mMadeProgress)) {
+                    if ((mInfoDelta.mETag == null && mMadeProgress
+                            && mInfo.mZipEntries == null)) {
                         // However, if we wrote data and have no ETag to verify
                         // contents against later, we can't actually resume.
+                        // Extracted ZIP entries are checked by CRC instead.
                         mInfoDelta.mStatus = STATUS_CANNOT_RESUME;
                     }
                 }
@@ -297,6 +411,7 @@ public class DownloadThread implements Runnable {
 
             finalizeDestination();
 
+            mInfoDelta.publishStatus();
             mInfoDelta.writeToDatabase();
 
             if (Downloads.Impl.isStatusCompleted(mInfoDelta.mStatus)) {
@@ -315,10 +430,30 @@ public class DownloadThread implements Runnable {
      * handle the response, and transfer the data to the destination file.
      */
     private void executeDownload() throws StopRequestException {
+        if (mInfo.mSparse != Downloads.Impl.SPARSE_NONE) {
+            executeSparseFill();
+            return;
+        }
+        if (mInfo.mZipEntries != null) {
+            executeZipExtraction();
+            return;
+        }
+
+        mVerifier = BlockVerifier.load(mContext, mInfo);
+        if (mVerifier != null && mInfoDelta.mTotalBytes != -1
+                && mInfoDelta.mCurrentBytes == mInfoDelta.mTotalBytes) {
+            // Every byte arrived on an earlier attempt; only corrupt blocks
+            // remain to be fetched again.
+            return;
+        }
+
         final boolean resuming = mInfoDelta.mCurrentBytes != 0;
 
         logDebug("resuming; mCurrentBytes is " + mInfoDelta.mCurrentBytes);
 
+        // Turn away requests over quota before any connection is made
+        checkQuota();
+
         URL url;
         try {
             // TODO: migrate URL sanity checking into client side of API
@@ -349,17 +484,22 @@ public class DownloadThread implements Runnable {
                             throw new StopRequestException(
                                     STATUS_CANNOT_RESUME, "Expected partial, but received OK");
                         }
-                        parseOkHeaders(conn);
+                        parseOkHeaders(conn, null);
                         transferData(conn);
                         return;
 
                     case HTTP_PARTIAL:
-                        if (!resuming) {
+                        if (!resuming && !mInfo.hasRange()) {
                             throw new StopRequestException(
                                     STATUS_CANNOT_RESUME, "Expected OK, but received partial");
                         }
+                        final long[] range = checkContentRange(conn);
 
-                        logDebug("resuming; received partial ");
+                        if (resuming) {
+                            logDebug("resuming; received partial ");
+                        } else {
+                            parseOkHeaders(conn, range);
+                        }
 
                         transferData(conn);
                         return;
@@ -415,6 +555,216 @@ public class DownloadThread implements Runnable {
         throw new StopRequestException(STATUS_TOO_MANY_REDIRECTS, "Too many redirects");
     }
 
+    /**
+     * Fill in the blocks of a sparse download that readers haven't touched
+     * yet, sharing block state with any open {@link SparseFile}.
+     */
+    private void executeSparseFill() throws StopRequestException {
+        checkConnectivity();
+
+        final SparseDownload sparse;
+        try {
+            sparse = SparseDownload.acquire(mContext, mId);
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        }
+
+        try {
+            boolean more = true;
+            while (more) {
+                checkPausedOrCanceled();
+                more = sparse.fillNext(Constants.SPARSE_FILL_BLOCKS);
+
+                mInfoDelta.mFileName = sparse.getFileName();
+                mInfoDelta.mMimeType = sparse.getMimeType();
+                mInfoDelta.mETag = sparse.getETag();
+                mInfoDelta.mCurrentBytes = sparse.getPresentBytes();
+                try {
+                    mInfoDelta.mTotalBytes = sparse.length();
+                } catch (IOException e) {
+                    throw new StopRequestException(STATUS_FILE_ERROR, e);
+                }
+            }
+        } finally {
+            sparse.release();
+        }
+    }
+
+    /**
+     * Check every block not already verified while streaming against the
+     * hash manifest, then fetch failed blocks again by range and check them
+     * once more.
+     */
+    private void verifyBlocks() throws StopRequestException {
+        if (mVerifier == null) {
+            return;
+        }
+
+        final long length = mInfoDelta.mCurrentBytes;
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mInfoDelta.mFileName, "rw");
+            final FileChannel channel = file.getChannel();
+
+            List<long[]> failed = mVerifier.verifyRemaining(channel, length);
+            if (failed.isEmpty()) {
+                return;
+            }
+            if (mInfo.hasRange()) {
+                throw new StopRequestException(STATUS_HTTP_DATA_ERROR,
+                        failed.size() + " runs of blocks failed verification");
+            }
+
+            logWarning("Fetching " + failed.size() + " runs of corrupt blocks again");
+            checkConnectivity();
+            final RangeFetcher fetcher = new RangeFetcher(mInfo, mInfoDelta.mETag);
+            final RangeFetcher.RangeListener listener = new RangeFetcher.RangeListener() {
+                @Override
+                public void onRangeWritten(long start, long len, long totalLength)
+                        throws StopRequestException {
+                    if (totalLength != -1 && totalLength != length) {
+                        throw new StopRequestException(
+                                STATUS_CANNOT_RESUME, "Remote length changed");
+                    }
+                    checkPausedOrCanceled();
+                }
+            };
+            for (int i = 0; i < failed.size(); i += Constants.MAX_RANGES_PER_REQUEST) {
+                checkPausedOrCanceled();
+                fetcher.fetchRanges(failed.subList(i,
+                        Math.min(i + Constants.MAX_RANGES_PER_REQUEST, failed.size())),
+                        channel, listener);
+            }
+            channel.force(false);
+
+            failed = mVerifier.verifyRemaining(channel, length);
+            if (!failed.isEmpty()) {
+                throw new StopRequestException(STATUS_HTTP_DATA_ERROR,
+                        failed.size() + " runs of blocks failed verification");
+            }
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        } finally {
+            IoUtils.closeQuietly(file);
+            mInfoDelta.writeToDatabase();
+        }
+    }
+
+    /**
+     * Extract only the requested entries of a remote ZIP archive, skipping any
+     * that an earlier attempt already extracted intact.
+     */
+    private void executeZipExtraction() throws StopRequestException {
+        checkConnectivity();
+
+        final File dir = getZipDestination();
+        mInfoDelta.mFileName = dir.getAbsolutePath();
+
+        final RangeFetcher fetcher = new RangeFetcher(mInfo, mInfoDelta.mETag);
+        final RemoteZipExtractor extractor = new RemoteZipExtractor(fetcher, dir);
+        final List<RemoteZipExtractor.Entry> entries = extractor.resolve(mInfo.getZipEntries());
+        mInfoDelta.mETag = fetcher.getETag();
+
+        final boolean[] extracted = new boolean[entries.size()];
+        long totalBytes = 0;
+        long currentBytes = 0;
+        for (int i = 0; i < extracted.length; i++) {
+            final RemoteZipExtractor.Entry entry = entries.get(i);
+            extracted[i] = extractor.isExtracted(entry);
+            totalBytes += entry.compressedSize;
+            if (extracted[i]) {
+                currentBytes += entry.compressedSize;
+            }
+        }
+        mInfoDelta.mTotalBytes = totalBytes;
+        mInfoDelta.mCurrentBytes = currentBytes;
+        mInfoDelta.writeToDatabaseOrThrow();
+
+        // Check connectivity and quota again now that we know the total size
+        checkConnectivity();
+        checkQuota();
+
+        final RemoteZipExtractor.ProgressListener listener =
+                new RemoteZipExtractor.ProgressListener() {
+            @Override
+            public void onProgress(long compressedBytes, FileDescriptor outFd)
+                    throws StopRequestException {
+                mMadeProgress = true;
+                mInfoDelta.mCurrentBytes += compressedBytes;
+                try {
+                    updateProgress(outFd);
+                } catch (IOException e) {
+                    throw new StopRequestException(STATUS_FILE_ERROR, e);
+                }
+                checkPausedOrCanceled();
+            }
+        };
+        for (int i = 0; i < extracted.length; i++) {
+            if (!extracted[i]) {
+                checkPausedOrCanceled();
+                extractor.extract(entries.get(i), listener);
+            }
+        }
+    }
+
+    /**
+     * Return the directory that receives extracted ZIP entries, creating it
+     * when needed.
+     */
+    private File getZipDestination() throws StopRequestException {
+        final File dir;
+        if (mInfo.mDestination == Downloads.Impl.DESTINATION_FILE_URI) {
+            dir = new File(Uri.parse(mInfo.mHint).getPath());
+        } else {
+            try {
+                dir = new File(Helpers.getSuccessDestinationDirectory(
+                        mContext, mInfo.mDestination), "zip-" + mId);
+            } catch (IOException e) {
+                throw new StopRequestException(STATUS_FILE_ERROR, e);
+            }
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new StopRequestException(STATUS_FILE_ERROR, "Failed to create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Check that a partial response starts exactly where we asked it to, and
+     * doesn't run past the end of any requested range.
+     *
+     * @return the parsed {@code Content-Range} of the response
+     */
+    private long[] checkContentRange(HttpURLConnection conn) throws StopRequestException {
+        final long[] range = RangeFetcher.parseContentRange(conn.getHeaderField("Content-Range"));
+        if (range == null) {
+            throw new StopRequestException(
+                    STATUS_HTTP_DATA_ERROR, "Missing or invalid Content-Range");
+        }
+        if (range[0] != mInfo.mRangeStart + mInfoDelta.mCurrentBytes) {
+            throw new StopRequestException(
+                    STATUS_CANNOT_RESUME, "Content-Range starts at unexpected offset");
+        }
+        if (mInfo.mRangeEnd != -1 && range[1] > mInfo.mRangeEnd) {
+            throw new StopRequestException(
+                    STATUS_HTTP_DATA_ERROR, "Content-Range ends past requested range");
+        }
+        return range;
+    }
+
+    /**
+     * Return length of the requested range within a remote file of the given
+     * length, which may be -1 when unknown.
+     */
+    private long getRangeLength(long fullLength) {
+        if (fullLength == -1) {
+            return (mInfo.mRangeEnd == -1) ? -1 : mInfo.mRangeEnd - mInfo.mRangeStart + 1;
+        }
+        final long end = (mInfo.mRangeEnd == -1) ? fullLength - 1
+                : Math.min(mInfo.mRangeEnd, fullLength - 1);
+        return Math.max(end - mInfo.mRangeStart + 1, 0);
+    }
+
     /**
      * Transfer data from the given connection to the destination file.
      */
@@ -441,6 +791,7 @@ public class DownloadThread implements Runnable {
         try {
             try {
                 in = conn.getInputStream();
+                skipFully(in, mSkipBytes);
             } catch (IOException e) {
                 throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
             }
@@ -458,6 +809,10 @@ public class DownloadThread implements Runnable {
                 throw new StopRequestException(STATUS_FILE_ERROR, e);
             }
 
+            if (mVerifier != null) {
+                seekVerifier();
+            }
+
             // Start streaming data, periodically watch for pause/cancel
             // commands and checking disk space as needed.
             transferData(in, out, outFd);
@@ -476,19 +831,52 @@ public class DownloadThread implements Runnable {
         }
     }
 
+    /**
+     * Position the block verifier at the resume offset, hashing the partial
+     * block already on disk.
+     */
+    private void seekVerifier() throws StopRequestException {
+        if (mInfoDelta.mCurrentBytes % mVerifier.getBlockSize() == 0) {
+            mVerifier.seek(null, mInfoDelta.mCurrentBytes);
+            return;
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mInfoDelta.mFileName, "r");
+            mVerifier.seek(file.getChannel(), mInfoDelta.mCurrentBytes);
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        } finally {
+            IoUtils.closeQuietly(file);
+        }
+    }
+
     /**
      * Transfer as much data as possible from the HTTP response to the
      * destination file.
      */
     private void transferData(InputStream in, OutputStream out, FileDescriptor outFd)
             throws StopRequestException {
+        // Preflight disk space requirements, when known
+        if (mInfoDelta.mTotalBytes != -1) {
+            ensureAvailableSpace(outFd, mInfoDelta.mTotalBytes - mInfoDelta.mCurrentBytes);
+        }
+
         final byte buffer[] = new byte[Constants.BUFFER_SIZE];
         while (true) {
             checkPausedOrCanceled();
 
             int len = -1;
             try {
-                len = in.read(buffer);
+                // Stop at the end of a requested range, even if the server
+                // would keep sending.
+                int count = buffer.length;
+                if (mInfoDelta.mTotalBytes != -1) {
+                    count = (int) Math.min(count,
+                            mInfoDelta.mTotalBytes - mInfoDelta.mCurrentBytes);
+                }
+                len = (count > 0) ? in.read(buffer, 0, count) : -1;
             } catch (IOException e) {
                 throw new StopRequestException(
                         STATUS_HTTP_DATA_ERROR, "Failed reading response: " + e, e);
@@ -498,24 +886,25 @@ public class DownloadThread implements Runnable {
                 break;
             }
 
-            try {
-                // When streaming, ensure space before each write
-                if (mInfoDelta.mTotalBytes == -1) {
-
-                    if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-                        final long curSize = Os.fstat(outFd).st_size;
-                        final long newBytes = (mInfoDelta.mCurrentBytes + len) - curSize;
-                    }
-                    StorageUtils.ensureAvailableSpace(mContext, outFd/*,newBytes*/);
-                }
+            // When streaming, ensure space before each write
+            if (mInfoDelta.mTotalBytes == -1) {
+                ensureAvailableSpace(outFd, len);
+            }
 
+            try {
                 out.write(buffer, 0, len);
+                if (mVerifier != null) {
+                    mVerifier.update(buffer, 0, len);
+                }
 
                 mMadeProgress = true;
                 mInfoDelta.mCurrentBytes += len;
 
                 updateProgress(outFd);
 
+            } catch (StopRequestException e) {
+                // Quota and cancel checks already carry their own status
+                throw e;
             } catch (Exception e) {
                 throw new StopRequestException(STATUS_FILE_ERROR, e);
             }
@@ -527,11 +916,44 @@ public class DownloadThread implements Runnable {
         }
     }
 
+    /**
+     * Make room for the given number of bytes on the partition backing the
+     * destination file, evicting purgeable downloads if needed.
+     */
+    private void ensureAvailableSpace(FileDescriptor outFd, long bytes)
+            throws StopRequestException {
+        try {
+            StorageUtils.ensureAvailableSpace(mContext, outFd,
+                    (mInfoDelta.mFileName != null) ? new File(mInfoDelta.mFileName) : null,
+                    bytes);
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        }
+    }
+
     /**
      * Called just before the thread finishes, regardless of status, to take any
      * necessary action on the downloaded file.
      */
     private void finalizeDestination() {
+        if (mInfo.mSparse != Downloads.Impl.SPARSE_NONE) {
+            // Sparse files stay in place with their fetched blocks, since
+            // readers may still hold them open.
+            return;
+        }
+
+        if (mInfo.mZipEntries != null) {
+            // Extracted entries are written in place, so there is nothing to
+            // move on success; on error, drop whatever was extracted.
+            if (Downloads.Impl.isStatusError(mInfoDelta.mStatus)
+                    && mInfoDelta.mFileName != null) {
+                RemoteZipExtractor.deleteEntries(
+                        new File(mInfoDelta.mFileName), mInfo.getZipEntries());
+                mInfoDelta.mFileName = null;
+            }
+            return;
+        }
+
         if (Downloads.Impl.isStatusError(mInfoDelta.mStatus)) {
             // When error, free up any disk space
             try {
@@ -601,6 +1023,21 @@ public class DownloadThread implements Runnable {
         }
     }
 
+    /**
+     * Check if this download fits in the quota of its owner alongside the
+     * owner's other downloads, queueing or failing the request as it asked
+     * for if it doesn't.
+     */
+    private void checkQuota() throws StopRequestException {
+        if (mInfo.isWithinQuota(mInfoDelta.mTotalBytes, mInfoDelta.mCurrentBytes)) {
+            return;
+        }
+        final int status = mInfo.mQueueOverQuota ? Downloads.Impl.STATUS_QUEUED_FOR_QUOTA
+                : Downloads.Impl.STATUS_QUOTA_EXCEEDED;
+        throw new StopRequestException(status, "Over quota of " + mInfo.mQuota + " bytes for "
+                + mInfo.getOwner());
+    }
+
     /**
      * Check if the download has been paused or canceled, stopping the request
      * appropriately if it has been.
@@ -647,27 +1084,44 @@ public class DownloadThread implements Runnable {
 
             mSpeedSampleStart = now;
             mSpeedSampleBytes = currentBytes;
+
+            // Keep the service's view current between database updates
+            synchronized (mInfo) {
+                mInfo.mCurrentBytes = currentBytes;
+                mInfo.mTotalBytes = mInfoDelta.mTotalBytes;
+            }
         }
 
         final long bytesDelta = currentBytes - mLastUpdateBytes;
         final long timeDelta = now - mLastUpdateTime;
         if (bytesDelta > Constants.MIN_PROGRESS_STEP && timeDelta > Constants.MIN_PROGRESS_TIME) {
-            // fsync() to ensure that current progress has been flushed to disk,
-            // so we can always resume based on latest database information.
+            // fsync() to ensure that current progress has been flushed to disk
+            // before the checkpoint is queued, so we can always resume based
+            // on latest database information.
             outFd.sync();
 
-            mInfoDelta.writeToDatabaseOrThrow();
+            mInfoDelta.writeProgressToDatabaseOrThrow();
 
             mLastUpdateBytes = currentBytes;
             mLastUpdateTime = now;
+
+            // Nothing was reserved for a download of unknown size, so stop
+            // it once it crosses the quota
+            if (mInfo.mQuota >= 0 && mInfoDelta.mTotalBytes <= 0) {
+                checkQuota();
+            }
         }
     }
 
     /**
      * Process response headers from first server response. This derives its
      * filename, size, and ETag.
+     *
+     * @param contentRange parsed {@code Content-Range} when the server answered
+     *            our requested range, otherwise {@code null}.
      */
-    private void parseOkHeaders(HttpURLConnection conn) throws StopRequestException {
+    private void parseOkHeaders(HttpURLConnection conn, long[] contentRange)
+            throws StopRequestException {
         if (mInfoDelta.mFileName == null) {
             final String contentDisposition = conn.getHeaderField("Content-Disposition");
             final String contentLocation = conn.getHeaderField("Content-Location");
@@ -693,12 +1147,23 @@ public class DownloadThread implements Runnable {
             mInfoDelta.mTotalBytes = -1;
         }
 
+        if (contentRange != null) {
+            mInfoDelta.mTotalBytes = contentRange[1] - contentRange[0] + 1;
+        } else if (mInfo.hasRange()) {
+            // Server ignored our range; skip to the part we asked for and
+            // stop once we have it.
+            logDebug("range ignored; received OK");
+            mSkipBytes = mInfo.mRangeStart;
+            mInfoDelta.mTotalBytes = getRangeLength(mInfoDelta.mTotalBytes);
+        }
+
         mInfoDelta.mETag = conn.getHeaderField("ETag");
 
         mInfoDelta.writeToDatabaseOrThrow();
 
-        // Check connectivity again now that we know the total size
+        // Check connectivity and quota again now that we know the total size
         checkConnectivity();
+        checkQuota();
     }
 
     private void parseUnavailableHeaders(HttpURLConnection conn) {
@@ -738,11 +1203,27 @@ public class DownloadThread implements Runnable {
         // streaming large downloads after cancelled.
         conn.setRequestProperty("Connection", "close");
 
-        if (resuming) {
-            if (mInfoDelta.mETag != null) {
-                conn.addRequestProperty("If-Match", mInfoDelta.mETag);
+        if (resuming && mInfoDelta.mETag != null) {
+            conn.addRequestProperty("If-Match", mInfoDelta.mETag);
+        }
+        if (resuming || mInfo.hasRange()) {
+            final long start = mInfo.mRangeStart + mInfoDelta.mCurrentBytes;
+            final String end = (mInfo.mRangeEnd == -1) ? "" : String.valueOf(mInfo.mRangeEnd);
+            conn.addRequestProperty("Range", "bytes=" + start + "-" + end);
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            final long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new IOException("Response ended before requested range");
+                }
+                count--;
+            } else {
+                count -= skipped;
             }
-            conn.addRequestProperty("Range", "bytes=" + mInfoDelta.mCurrentBytes + "-");
         }
     }
 
@@ -47,6 +47,13 @@ public final class Downloads {
         public static final Uri ALL_DOWNLOADS_CONTENT_URI =
                 Uri.parse("content://" + AUTHORITIES + "/all_downloads");
 
+        /**
+         * The content URI notified whenever the summary returned by
+         * {@link DownloadManager#getSummary()} may have changed.
+         */
+        public static final Uri SUMMARY_CONTENT_URI =
+                Uri.parse("content://" + AUTHORITIES + "/summary");
+
         /** URI segment to access a publicly accessible downloaded file */
         public static final String PUBLICLY_ACCESSIBLE_DOWNLOADS_URI_SEGMENT = "public_downloads";
 
@@ -356,6 +363,94 @@ public final class Downloads {
 
         public static final String COLUMN_ALLOW_WRITE = "allow_write";
 
+        /**
+         * The name of the column indicating whether this download is fetched
+         * lazily by read position. Valid values are indicated by SPARSE_*
+         * constants.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_SPARSE = "sparse";
+
+        /**
+         * The name of the column holding the bitmap of blocks already present
+         * in the destination file of a sparse download.
+         * This column is only for internal use.
+         * <P>Type: BLOB</P>
+         */
+        public static final String COLUMN_BLOCK_MAP = "block_map";
+
+        /**
+         * The name of the column holding the offset of the first byte to
+         * fetch, when only part of the remote file was requested.
+         * <P>Type: BIGINT</P>
+         */
+        public static final String COLUMN_RANGE_START = "range_start";
+
+        /**
+         * The name of the column holding the offset of the last byte to fetch,
+         * inclusive, or -1 to fetch through the end of the remote file.
+         * <P>Type: BIGINT</P>
+         */
+        public static final String COLUMN_RANGE_END = "range_end";
+
+        /**
+         * The name of the column holding the newline-separated names of the
+         * entries to extract from a remote ZIP archive. When set, only those
+         * entries are fetched and {@link #_DATA} names the directory that
+         * receives them.
+         * <P>Type: TEXT</P>
+         * <P>Owner can Init</P>
+         */
+        public static final String COLUMN_ZIP_ENTRIES = "zip_entries";
+
+        /**
+         * The name of the column holding the {@link java.security.MessageDigest}
+         * algorithm of the block hash manifest, if any.
+         * <P>Type: TEXT</P>
+         * <P>Owner can Init</P>
+         */
+        public static final String COLUMN_HASH_ALGORITHM = "hash_algorithm";
+
+        /**
+         * The name of the column holding the size in bytes of each block
+         * covered by one entry of the block hash manifest.
+         * <P>Type: INTEGER</P>
+         * <P>Owner can Init</P>
+         */
+        public static final String COLUMN_HASH_BLOCK_SIZE = "hash_block_size";
+
+        /**
+         * The name of the column holding the block hash manifest: the digest
+         * of every block of the file, concatenated in order.
+         * <P>Type: BLOB</P>
+         * <P>Owner can Init</P>
+         */
+        public static final String COLUMN_BLOCK_HASHES = "block_hashes";
+
+        /**
+         * The name of the column holding a bitmap of the blocks already
+         * checked against the block hash manifest.
+         * This column is only for internal use.
+         * <P>Type: BLOB</P>
+         */
+        public static final String COLUMN_VERIFIED_MAP = "verified_map";
+
+        /**
+         * The name of the column holding the most bytes that downloads of the
+         * same owner may hold together, this one included, or -1 for no limit.
+         * <P>Type: BIGINT</P>
+         * <P>Owner can Init</P>
+         */
+        public static final String COLUMN_QUOTA = "quota";
+
+        /**
+         * The name of the column holding whether a download over its
+         * {@link #COLUMN_QUOTA} waits for space rather than failing.
+         * <P>Type: BOOLEAN</P>
+         * <P>Owner can Init</P>
+         */
+        public static final String COLUMN_QUEUE_OVER_QUOTA = "queue_over_quota";
+
         /**
          * default value for {@link #COLUMN_LAST_UPDATESRC}.
          * This value is used when this column's value is not relevant.
@@ -433,6 +528,22 @@ public final class Downloads {
          */
         public static final int CONTROL_PAUSED = 1;
 
+        /**
+         * This download is transferred front to back as usual.
+         */
+        public static final int SPARSE_NONE = 0;
+
+        /**
+         * This download only fetches the blocks that readers touch.
+         */
+        public static final int SPARSE_ON_DEMAND = 1;
+
+        /**
+         * This download fetches the blocks that readers touch, and fills in
+         * the remaining blocks when no other downloads are running.
+         */
+        public static final int SPARSE_FILL_WHEN_IDLE = 2;
+
         /*
          * Lists the states that the download manager can set on a download
          * to notify applications of the download progress.
@@ -529,6 +640,12 @@ public final class Downloads {
          */
         public static final int STATUS_QUEUED_FOR_WIFI = 196;
 
+        /**
+         * This download would take its owner over the quota set with it and
+         * is waiting for other downloads to be removed to proceed.
+         */
+        public static final int STATUS_QUEUED_FOR_QUOTA = 197;
+
         /**
          * This download couldn't be completed due to insufficient storage
          * space.  Typically, this is because the SD card is full.
@@ -657,6 +774,12 @@ public final class Downloads {
         @Deprecated
         public static final int STATUS_BLOCKED = 498;
 
+        /**
+         * This download would have taken its owner over the quota set with
+         * it, so it was stopped before any data was transferred.
+         */
+        public static final int STATUS_QUOTA_EXCEEDED = 499;
+
         /** {@hide} */
         public static String statusToString(int status) {
             switch (status) {
@@ -666,6 +789,7 @@ public final class Downloads {
                 case STATUS_WAITING_TO_RETRY: return "WAITING_TO_RETRY";
                 case STATUS_WAITING_FOR_NETWORK: return "WAITING_FOR_NETWORK";
                 case STATUS_QUEUED_FOR_WIFI: return "QUEUED_FOR_WIFI";
+                case STATUS_QUEUED_FOR_QUOTA: return "QUEUED_FOR_QUOTA";
                 case STATUS_INSUFFICIENT_SPACE_ERROR: return "INSUFFICIENT_SPACE_ERROR";
                 case STATUS_DEVICE_NOT_FOUND_ERROR: return "DEVICE_NOT_FOUND_ERROR";
                 case STATUS_SUCCESS: return "SUCCESS";
@@ -684,6 +808,7 @@ public final class Downloads {
                 case STATUS_HTTP_EXCEPTION: return "HTTP_EXCEPTION";
                 case STATUS_TOO_MANY_REDIRECTS: return "TOO_MANY_REDIRECTS";
                 case STATUS_BLOCKED: return "BLOCKED";
+                case STATUS_QUOTA_EXCEEDED: return "QUOTA_EXCEEDED";
                 default: return Integer.toString(status);
             }
         }
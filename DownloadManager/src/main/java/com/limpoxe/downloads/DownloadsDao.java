@@ -0,0 +1,606 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.limpoxe.downloads;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.provider.BaseColumns;
+
+import com.limpoxe.downloads.utils.GuardedBy;
+import com.limpoxe.downloads.utils.IoUtils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Direct access to the downloads database for the engine running in the
+ * provider's process. {@link DownloadService}, {@link DownloadThread} and
+ * friends read and write their own rows here instead of going through
+ * {@link DownloadProvider}, which skips URI matching, caller checks and
+ * selection validation, while observers are still notified the same way.
+ */
+final class DownloadsDao {
+    private static final String DB_TABLE = DatabaseHelper.DB_TABLE;
+    private static final String PROGRESS_TABLE = DatabaseHelper.PROGRESS_TABLE;
+    /** Readers see both tables joined back into the original columns */
+    private static final String DOWNLOADS_VIEW = DatabaseHelper.DOWNLOADS_VIEW;
+
+    private static final HashSet<String> sProgressColumns =
+            new HashSet<String>(Arrays.asList(DatabaseHelper.PROGRESS_COLUMNS));
+
+    /** Different base URIs that could be used to access an individual download */
+    private static final Uri[] BASE_URIS = new Uri[] {
+            Downloads.Impl.CONTENT_URI,
+            Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+    };
+
+    private static DownloadsDao sInstance;
+
+    private final Context mContext;
+    private final DatabaseHelper mOpenHelper;
+    private final Handler mHandler;
+
+    /** Rate-limits change notifications sent to observers outside the service */
+    private final ChangeCoalescer mCoalescer;
+
+    /** Commits progress checkpoints of all running downloads together */
+    private final ProgressWriter mProgressWriter;
+
+    private final Object mProgressLock = new Object();
+    /** Compiled on first use by {@link #writeProgress} */
+    @GuardedBy("mProgressLock")
+    private SQLiteStatement mProgressStatement;
+
+    /**
+     * Downloads changed after a given point of the change log.
+     */
+    public static class Changes {
+        /** Latest change sequence covered */
+        public long mSequence;
+        /** Whether changes since the given sequence were dropped from the log */
+        public boolean mOverflow;
+        public long[] mIds;
+    }
+
+    public static synchronized DownloadsDao getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DownloadsDao(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DownloadsDao(Context context) {
+        mContext = context;
+        mOpenHelper = DatabaseHelper.getInstance(context);
+
+        final HandlerThread handlerThread =
+                new HandlerThread("DownloadsDao handler", Process.THREAD_PRIORITY_BACKGROUND);
+        handlerThread.start();
+        mHandler = new Handler(handlerThread.getLooper());
+        mCoalescer = new ChangeCoalescer(context.getContentResolver(), mHandler,
+                Constants.MIN_NOTIFY_INTERVAL);
+        mProgressWriter = new ProgressWriter(this, mHandler);
+    }
+
+    public DatabaseHelper getOpenHelper() {
+        return mOpenHelper;
+    }
+
+    /**
+     * Background handler shared with {@link DownloadProvider}.
+     */
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    public ProgressWriter getProgressWriter() {
+        return mProgressWriter;
+    }
+
+    public void setMinNotifyInterval(Uri uri, long intervalMillis) {
+        mCoalescer.setMinInterval(uri, intervalMillis);
+    }
+
+    /**
+     * Query downloads with every column, like a query of
+     * {@link Downloads.Impl#ALL_DOWNLOADS_CONTENT_URI} from the provider's
+     * own process.
+     */
+    public Cursor queryDownloads(String selection, String[] selectionArgs) {
+        return mOpenHelper.getReadableDatabase().query(DOWNLOADS_VIEW, null, selection,
+                selectionArgs, null, null, null);
+    }
+
+    public Cursor queryDownload(long id, String[] projection) {
+        return mOpenHelper.getReadableDatabase().query(DOWNLOADS_VIEW, projection,
+                Downloads.Impl._ID + " = ?", new String[] { String.valueOf(id) },
+                null, null, null);
+    }
+
+    /**
+     * Query the custom request headers registered for the given downloads,
+     * at most {@link DownloadManager#MAX_IDS_PER_STATEMENT} of them, in the
+     * order they were added.
+     */
+    public Cursor queryRequestHeaders(long[] ids) {
+        return mOpenHelper.getReadableDatabase().query(
+                Downloads.Impl.RequestHeaders.HEADERS_DB_TABLE, new String[] {
+                        Downloads.Impl.RequestHeaders.COLUMN_DOWNLOAD_ID,
+                        Downloads.Impl.RequestHeaders.COLUMN_HEADER,
+                        Downloads.Impl.RequestHeaders.COLUMN_VALUE
+                }, DownloadManager.getWhereClauseForIds(
+                        Downloads.Impl.RequestHeaders.COLUMN_DOWNLOAD_ID, ids),
+                DownloadManager.getWhereArgsForIds(ids), null, null, "id");
+    }
+
+    /**
+     * Return the bytes held by the downloads of the given owner, a
+     * notification package or, for downloads without one, a UID.
+     */
+    public long getOwnerUsage(String owner) {
+        return DatabaseUtils.longForQuery(mOpenHelper.getReadableDatabase(),
+                "SELECT IFNULL((SELECT " + DatabaseHelper.COLUMN_USAGE_BYTES + " FROM "
+                + DatabaseHelper.USAGE_TABLE + " WHERE " + DatabaseHelper.COLUMN_OWNER
+                + " = ?), 0)", new String[] { owner });
+    }
+
+    /**
+     * Return the bytes the given owner's other downloads hold, plus those
+     * that its running downloads of known size still have to fetch. Each
+     * download writes its size before its quota check, so two downloads
+     * checked at once always see each other's share.
+     *
+     * @param id the download to leave out
+     */
+    public long getOwnerCommittedBytes(String owner, long id) {
+        final String idArg = String.valueOf(id);
+        final String current = Downloads.Impl.COLUMN_CURRENT_BYTES;
+        final String total = Downloads.Impl.COLUMN_TOTAL_BYTES;
+        return DatabaseUtils.longForQuery(mOpenHelper.getReadableDatabase(),
+                "SELECT IFNULL((SELECT " + DatabaseHelper.COLUMN_USAGE_BYTES + " FROM "
+                + DatabaseHelper.USAGE_TABLE + " WHERE " + DatabaseHelper.COLUMN_OWNER
+                + " = ?), 0) - IFNULL((SELECT " + DatabaseHelper.usageOf("") + " FROM "
+                + DOWNLOADS_VIEW + " WHERE " + Downloads.Impl._ID + " = ?), 0) + IFNULL((SELECT"
+                + " SUM(" + total + " - " + current + ") FROM " + DOWNLOADS_VIEW + " WHERE "
+                + Constants.ACTIVE_SELECTION + " AND " + Downloads.Impl.COLUMN_STATUS + " = "
+                + Downloads.Impl.STATUS_RUNNING + " AND " + total + " > " + current + " AND "
+                + Downloads.Impl._ID + " != ? AND " + DatabaseHelper.ownerOf("") + " = ?), 0)",
+                new String[] { owner, idArg, idArg, owner });
+    }
+
+    /**
+     * Query the download counts and bytes of the given owner by status
+     * class, one row per class with any downloads.
+     */
+    public Cursor querySummary(String owner) {
+        return mOpenHelper.getReadableDatabase().query(DatabaseHelper.SUMMARY_TABLE,
+                new String[] {
+                        DatabaseHelper.COLUMN_STATUS_CLASS,
+                        DatabaseHelper.COLUMN_SUMMARY_COUNT,
+                        DatabaseHelper.COLUMN_SUMMARY_BYTES,
+                        DatabaseHelper.COLUMN_SUMMARY_REMAINING
+                }, DatabaseHelper.COLUMN_OWNER + " = ? AND "
+                + DatabaseHelper.COLUMN_SUMMARY_COUNT + " > 0", new String[] { owner },
+                null, null, null);
+    }
+
+    /**
+     * Insert a download row, which must already hold its ID, storing its
+     * progress columns in their own table.
+     *
+     * @return the new row ID, or -1 on failure.
+     */
+    public long insertDownload(SQLiteDatabase db, ContentValues values) {
+        final ContentValues wide = new ContentValues();
+        final ContentValues progress = new ContentValues();
+        splitValues(values, wide, progress);
+        progress.put(Downloads.Impl._ID, values.getAsLong(Downloads.Impl._ID));
+
+        beginTransaction(db);
+        try {
+            long rowID = db.insert(DB_TABLE, null, wide);
+            if (rowID != -1 && db.insert(PROGRESS_TABLE, null, progress) == -1) {
+                // Undo it by hand rather than fail a batch this may be part of
+                db.delete(DB_TABLE, Downloads.Impl._ID + " = ?",
+                        new String[] { String.valueOf(rowID) });
+                rowID = -1;
+            }
+            db.setTransactionSuccessful();
+            return rowID;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Update the downloads matching a selection over all columns, writing
+     * only the tables holding the columns that change. Checkpoints that
+     * touch only progress columns leave the wide rows alone.
+     *
+     * @return number of rows updated.
+     */
+    public int updateDownloads(ContentValues values, String where, String[] whereArgs) {
+        // A checkpoint still waiting would land on top of this update
+        discardProgress(where, whereArgs);
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final ContentValues wide = new ContentValues();
+        final ContentValues progress = new ContentValues();
+        splitValues(values, wide, progress);
+        if (progress.size() == 0) {
+            return db.update(DB_TABLE, wide, whereInView(where), whereArgs);
+        } else if (wide.size() == 0) {
+            return db.update(PROGRESS_TABLE, progress, whereInView(where), whereArgs);
+        }
+
+        // Pin the matching rows first, since the first update may change a
+        // column that the selection tests
+        beginTransaction(db);
+        try {
+            final long[] ids;
+            final Cursor cursor = db.query(DOWNLOADS_VIEW, new String[] { Downloads.Impl._ID },
+                    where, whereArgs, null, null, null);
+            try {
+                ids = new long[cursor.getCount()];
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    ids[i] = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            int count = 0;
+            for (int start = 0; start < ids.length;
+                    start += DownloadManager.MAX_IDS_PER_STATEMENT) {
+                final long[] chunk = Arrays.copyOfRange(ids, start,
+                        Math.min(start + DownloadManager.MAX_IDS_PER_STATEMENT, ids.length));
+                final String chunkWhere = DownloadManager.getWhereClauseForIds(chunk);
+                final String[] chunkArgs = DownloadManager.getWhereArgsForIds(chunk);
+                db.update(PROGRESS_TABLE, progress, chunkWhere, chunkArgs);
+                count += db.update(DB_TABLE, wide, chunkWhere, chunkArgs);
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Drop the checkpoints still waiting for the downloads matching a
+     * selection. Runs outside any transaction, since {@link ProgressWriter}
+     * holds its commit lock across one of its own.
+     */
+    private void discardProgress(String where, String[] whereArgs) {
+        if (!mProgressWriter.hasPending()) {
+            return;
+        }
+        final Cursor cursor = mOpenHelper.getReadableDatabase().query(DOWNLOADS_VIEW,
+                new String[] { Downloads.Impl._ID }, where, whereArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                mProgressWriter.discard(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Rewrite a selection over {@link #DOWNLOADS_VIEW} into one that either
+     * underlying table can be updated or deleted by.
+     */
+    static String whereInView(String where) {
+        if (where == null || where.isEmpty()) {
+            return null;
+        }
+        return Downloads.Impl._ID + " IN (SELECT " + Downloads.Impl._ID + " FROM "
+                + DOWNLOADS_VIEW + " WHERE " + where + ")";
+    }
+
+    private static void splitValues(ContentValues values, ContentValues wide,
+            ContentValues progress) {
+        wide.putAll(values);
+        progress.putAll(values);
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            if (sProgressColumns.contains(entry.getKey())) {
+                wide.remove(entry.getKey());
+            } else {
+                progress.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Update a download as the provider does for its own process.
+     *
+     * @param requireNotDeleted only update the row while it isn't deleted
+     * @param progressOnly whether this is a progress checkpoint that
+     *            {@link DownloadService} doesn't need to act on
+     * @return number of rows updated.
+     */
+    public int update(long id, ContentValues values, boolean requireNotDeleted,
+            boolean progressOnly) {
+        final String filename = values.getAsString(Downloads.Impl._DATA);
+        if (filename != null) {
+            Cursor c = null;
+            try {
+                c = queryDownload(id, new String[] { Downloads.Impl.COLUMN_TITLE });
+                if (!c.moveToFirst() || c.getString(0).isEmpty()) {
+                    values.put(Downloads.Impl.COLUMN_TITLE, new File(filename).getName());
+                }
+            } finally {
+                IoUtils.closeQuietly(c);
+            }
+        }
+
+        values.put(Downloads.Impl.COLUMN_LAST_UPDATESRC, progressOnly
+                ? Downloads.Impl.LAST_UPDATESRC_DONT_NOTIFY_DOWNLOADSVC
+                : Downloads.Impl.LAST_UPDATESRC_NOT_RELEVANT);
+        String where = Downloads.Impl._ID + " = ?";
+        if (requireNotDeleted) {
+            where += " AND " + Downloads.Impl.COLUMN_DELETED + " = 0";
+        }
+        final int count = updateDownloads(values, where, new String[] { String.valueOf(id) });
+
+        // Let observers learn right away that a download finished
+        final Integer status = values.getAsInteger(Downloads.Impl.COLUMN_STATUS);
+        final boolean completed = status != null && Downloads.Impl.isStatusCompleted(status);
+        notifyChange(id, !progressOnly, completed);
+        return count;
+    }
+
+    /**
+     * Write a progress checkpoint through a statement compiled once, touching
+     * only the narrow progress row. Like other checkpoints it leaves the
+     * service and the change log alone, and observers are left for
+     * {@link ProgressWriter} to notify once its transaction commits.
+     *
+     * @return number of rows updated, 0 when the download is gone or deleted.
+     */
+    int writeProgress(long id, long currentBytes, long lastMod, int status) {
+        final int count;
+        synchronized (mProgressLock) {
+            if (mProgressStatement == null) {
+                mProgressStatement = mOpenHelper.getWritableDatabase().compileStatement(
+                        "UPDATE " + PROGRESS_TABLE + " SET "
+                        + Downloads.Impl.COLUMN_CURRENT_BYTES + " = ?, "
+                        + Downloads.Impl.COLUMN_LAST_MODIFICATION + " = ?, "
+                        + Downloads.Impl.COLUMN_STATUS + " = ?"
+                        + " WHERE " + Downloads.Impl._ID + " = ? AND EXISTS (SELECT 1 FROM "
+                        + DB_TABLE + " WHERE " + Downloads.Impl._ID + " = ? AND "
+                        + Downloads.Impl.COLUMN_DELETED + " = 0)");
+            }
+            mProgressStatement.bindLong(1, currentBytes);
+            mProgressStatement.bindLong(2, lastMod);
+            mProgressStatement.bindLong(3, status);
+            mProgressStatement.bindLong(4, id);
+            mProgressStatement.bindLong(5, id);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                count = mProgressStatement.executeUpdateDelete();
+            } else {
+                mProgressStatement.execute();
+                count = (int) DatabaseUtils.longForQuery(mOpenHelper.getWritableDatabase(),
+                        "SELECT changes()", null);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Move downloads that finished before the given time into the archive,
+     * a chunk per transaction so that running downloads can checkpoint in
+     * between. Their progress and header rows go with them.
+     *
+     * @return IDs of the archived downloads.
+     */
+    public long[] archiveDownloads(long finishedBefore) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        // Same statuses as Downloads.Impl.isStatusCompleted()
+        final String where = "((" + Downloads.Impl.COLUMN_STATUS + " >= 200 AND "
+                + Downloads.Impl.COLUMN_STATUS + " < 300) OR ("
+                + Downloads.Impl.COLUMN_STATUS + " >= 400 AND "
+                + Downloads.Impl.COLUMN_STATUS + " < 600)) AND "
+                + Downloads.Impl.COLUMN_LAST_MODIFICATION + " < ? AND "
+                + Downloads.Impl.COLUMN_DELETED + " = 0";
+        final String[] whereArgs = new String[] { String.valueOf(finishedBefore) };
+
+        long[] archived = new long[0];
+        long[] chunk;
+        do {
+            beginTransaction(db);
+            try {
+                final Cursor cursor = db.query(DOWNLOADS_VIEW,
+                        new String[] { Downloads.Impl._ID }, where, whereArgs, null, null,
+                        null, String.valueOf(DownloadManager.MAX_IDS_PER_STATEMENT));
+                try {
+                    chunk = new long[cursor.getCount()];
+                    for (int i = 0; cursor.moveToNext(); i++) {
+                        chunk[i] = cursor.getLong(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                if (chunk.length > 0) {
+                    final String chunkWhere = DownloadManager.getWhereClauseForIds(chunk);
+                    final String[] chunkArgs = DownloadManager.getWhereArgsForIds(chunk);
+                    db.execSQL("INSERT INTO " + DatabaseHelper.ARCHIVE_TABLE + " SELECT * FROM "
+                            + DOWNLOADS_VIEW + " WHERE " + chunkWhere, chunkArgs);
+                    db.delete(DB_TABLE, chunkWhere, chunkArgs);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            final int start = archived.length;
+            archived = Arrays.copyOf(archived, start + chunk.length);
+            System.arraycopy(chunk, 0, archived, start, chunk.length);
+        } while (chunk.length == DownloadManager.MAX_IDS_PER_STATEMENT);
+
+        if (archived.length > 0) {
+            notifyChange(-1, false, false);
+        }
+        return archived;
+    }
+
+    /**
+     * Query the finished downloads whose files may be purged, archived ones
+     * included, least recently used first: ID, file name and the time of
+     * last use, which is when the download finished or was last opened.
+     */
+    public Cursor queryPurgeableDownloads() {
+        return mOpenHelper.getReadableDatabase().query(DatabaseHelper.DOWNLOADS_WITH_ARCHIVE,
+                new String[] {
+                        Downloads.Impl._ID,
+                        Downloads.Impl._DATA,
+                        "MAX(" + Downloads.Impl.COLUMN_LAST_MODIFICATION + ", IFNULL("
+                                + Constants.LAST_ACCESS + ", 0)) AS lastused"
+                }, Downloads.Impl.COLUMN_DESTINATION + " = "
+                        + Downloads.Impl.DESTINATION_CACHE_PARTITION_PURGEABLE + " AND "
+                        + Downloads.Impl.COLUMN_STATUS + " = " + Downloads.Impl.STATUS_SUCCESS
+                        + " AND " + Downloads.Impl.COLUMN_DELETED + " = 0",
+                null, null, null, "lastused");
+    }
+
+    /**
+     * Delete the given downloads, archived or not, in one transaction. Their
+     * files are left to the caller.
+     *
+     * @return number of rows deleted.
+     */
+    public int deleteDownloads(long[] ids) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count = 0;
+        beginTransaction(db);
+        try {
+            for (int start = 0; start < ids.length;
+                    start += DownloadManager.MAX_IDS_PER_STATEMENT) {
+                final long[] chunk = Arrays.copyOfRange(ids, start,
+                        Math.min(start + DownloadManager.MAX_IDS_PER_STATEMENT, ids.length));
+                final String chunkWhere = DownloadManager.getWhereClauseForIds(chunk);
+                final String[] chunkArgs = DownloadManager.getWhereArgsForIds(chunk);
+                count += db.delete(DB_TABLE, chunkWhere, chunkArgs);
+                count += db.delete(DatabaseHelper.ARCHIVE_TABLE, chunkWhere, chunkArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (count > 0) {
+            notifyChange(-1, true, false);
+        }
+        return count;
+    }
+
+    /**
+     * Return the IDs of downloads changed after the given sequence, dropping
+     * log entries up to it since the caller has already seen them. A negative
+     * sequence only asks for the current one, ahead of a full scan.
+     */
+    public Changes getChanges(long since) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final Changes result = new Changes();
+        beginTransaction(db);
+        try {
+            final String[] sinceArgs = new String[] { String.valueOf(since) };
+            db.delete(DatabaseHelper.CHANGES_TABLE, BaseColumns._ID + " <= ?", sinceArgs);
+
+            result.mSequence = DatabaseUtils.longForQuery(db, "SELECT IFNULL((SELECT seq"
+                    + " FROM sqlite_sequence WHERE name = ?), 0)",
+                    new String[] { DatabaseHelper.CHANGES_TABLE });
+            if (since < 0) {
+                db.setTransactionSuccessful();
+                return result;
+            }
+
+            // Sequence numbers are contiguous, so a gap after the caller's
+            // sequence means the trim trigger dropped entries it never saw
+            final long first = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MIN("
+                    + BaseColumns._ID + "), 0) FROM " + DatabaseHelper.CHANGES_TABLE, null);
+            result.mOverflow = first > since + 1;
+
+            final Cursor cursor = db.query(true, DatabaseHelper.CHANGES_TABLE, new String[] {
+                    DatabaseHelper.COLUMN_CHANGED_ID }, null, null, null, null, null, null);
+            try {
+                result.mIds = new long[cursor.getCount()];
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    result.mIds[i] = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return result;
+    }
+
+    /**
+     * Notify of a change through both URIs (/my_downloads and /all_downloads)
+     * and the summary URI, at most once per minimum interval of each URI.
+     * @param downloadId the changed download, or -1 for the whole list
+     * @param notifyService whether {@link DownloadService} should act on it
+     * @param immediate whether to bypass the minimum interval
+     */
+    public void notifyChange(long downloadId, boolean notifyService, boolean immediate) {
+        for (Uri uriToNotify : BASE_URIS) {
+            if (downloadId >= 0) {
+                uriToNotify = ContentUris.withAppendedId(uriToNotify, downloadId);
+            }
+            if (immediate) {
+                mCoalescer.notifyChangeNow(uriToNotify);
+            } else {
+                mCoalescer.notifyChange(uriToNotify);
+            }
+        }
+        if (immediate) {
+            mCoalescer.notifyChangeNow(Downloads.Impl.SUMMARY_CONTENT_URI);
+        } else {
+            mCoalescer.notifyChange(Downloads.Impl.SUMMARY_CONTENT_URI);
+        }
+        if (notifyService) {
+            mContext.getContentResolver().notifyChange(DownloadProvider.SERVICE_NOTIFY_URI, null);
+        }
+    }
+
+    /**
+     * Start an immediate transaction so that readers on other connections
+     * carry on while it runs.
+     */
+    static void beginTransaction(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            db.beginTransactionNonExclusive();
+        } else {
+            db.beginTransaction();
+        }
+    }
+}
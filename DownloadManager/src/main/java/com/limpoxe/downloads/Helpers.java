@@ -409,6 +409,7 @@ public class Helpers {
 
     // statement <- COLUMN COMPARE VALUE
     //            | COLUMN IS NULL
+    //            | COLUMN IN ( VALUE [, VALUE]* )
     private static void parseStatement(Lexer lexer) {
         // both possibilities start with COLUMN
         if (lexer.currentToken() != Lexer.TOKEN_COLUMN) {
@@ -436,6 +437,26 @@ public class Helpers {
             return;
         }
 
+        // statement <- COLUMN IN ( VALUE [, VALUE]* )
+        if (lexer.currentToken() == Lexer.TOKEN_IN) {
+            lexer.advance();
+            if (lexer.currentToken() != Lexer.TOKEN_OPEN_PAREN) {
+                throw new IllegalArgumentException("syntax error, expected (");
+            }
+            do {
+                lexer.advance();
+                if (lexer.currentToken() != Lexer.TOKEN_VALUE) {
+                    throw new IllegalArgumentException("syntax error, expected quoted string");
+                }
+                lexer.advance();
+            } while (lexer.currentToken() == Lexer.TOKEN_COMMA);
+            if (lexer.currentToken() != Lexer.TOKEN_CLOSE_PAREN) {
+                throw new IllegalArgumentException("syntax error, unmatched parenthese");
+            }
+            lexer.advance();
+            return;
+        }
+
         // didn't get anything good after COLUMN
         throw new IllegalArgumentException("syntax error after column name");
     }
@@ -454,6 +475,8 @@ public class Helpers {
         public static final int TOKEN_IS = 7;
         public static final int TOKEN_NULL = 8;
         public static final int TOKEN_END = 9;
+        public static final int TOKEN_IN = 10;
+        public static final int TOKEN_COMMA = 11;
 
         private final String mSelection;
         private final Set<String> mAllowedColumns;
@@ -501,6 +524,13 @@ public class Helpers {
                 return;
             }
 
+            // ","
+            if (chars[mOffset] == ',') {
+                ++mOffset;
+                mCurrentToken = TOKEN_COMMA;
+                return;
+            }
+
             // "?"
             if (chars[mOffset] == '?') {
                 ++mOffset;
@@ -566,6 +596,10 @@ public class Helpers {
                         mCurrentToken = TOKEN_IS;
                         return;
                     }
+                    if (word.equals("IN")) {
+                        mCurrentToken = TOKEN_IN;
+                        return;
+                    }
                     if (word.equals("OR") || word.equals("AND")) {
                         mCurrentToken = TOKEN_AND_OR;
                         return;
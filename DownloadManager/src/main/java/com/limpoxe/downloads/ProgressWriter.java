@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.limpoxe.downloads;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.util.Log;
+
+import com.limpoxe.downloads.utils.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Gathers progress checkpoints from every running {@link DownloadThread} and
+ * writes them in a single transaction every
+ * {@link Constants#PROGRESS_COMMIT_DELAY}, instead of one journal commit per
+ * checkpoint. Callers sync their data file before submitting, so a committed
+ * row never claims bytes that aren't on disk yet.
+ */
+class ProgressWriter {
+    /**
+     * Latest checkpoint of a download waiting for the next commit.
+     */
+    private static class Checkpoint {
+        public long mCurrentBytes;
+        public long mLastMod;
+        public int mStatus;
+    }
+
+    private final DownloadsDao mDao;
+    private final Handler mHandler;
+
+    /** Held across a whole commit, so {@link #discard} can wait one out */
+    private final Object mCommitLock = new Object();
+
+    @GuardedBy("this")
+    private Map<Long, Checkpoint> mPending = new HashMap<Long, Checkpoint>();
+    /** Downloads whose row was gone or deleted when their checkpoint landed */
+    @GuardedBy("this")
+    private final Set<Long> mMissing = new HashSet<Long>();
+
+    private final Runnable mCommit = new Runnable() {
+        @Override
+        public void run() {
+            commit();
+        }
+    };
+
+    public ProgressWriter(DownloadsDao dao, Handler handler) {
+        mDao = dao;
+        mHandler = handler;
+    }
+
+    /**
+     * Queue a checkpoint for the next commit, replacing any earlier one of
+     * the same download that is still waiting.
+     *
+     * @return false when an earlier checkpoint found the download gone or
+     *         deleted, so the caller should stop.
+     */
+    public boolean submit(long id, long currentBytes, long lastMod, int status) {
+        final boolean schedule;
+        synchronized (this) {
+            if (mMissing.remove(id)) {
+                return false;
+            }
+            Checkpoint checkpoint = mPending.get(id);
+            if (checkpoint == null) {
+                checkpoint = new Checkpoint();
+                mPending.put(id, checkpoint);
+            }
+            checkpoint.mCurrentBytes = currentBytes;
+            checkpoint.mLastMod = lastMod;
+            checkpoint.mStatus = status;
+            schedule = mPending.size() == 1;
+        }
+        if (schedule) {
+            mHandler.postDelayed(mCommit, Constants.PROGRESS_COMMIT_DELAY);
+        }
+        return true;
+    }
+
+    /**
+     * Drop any checkpoint of the given download that hasn't been written,
+     * waiting for a commit in flight. Called before a full update of the row,
+     * which must not be overwritten by an older checkpoint.
+     */
+    public void discard(long id) {
+        synchronized (mCommitLock) {
+            synchronized (this) {
+                mPending.remove(id);
+                mMissing.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Whether any checkpoint is waiting, once a commit in flight is done.
+     */
+    public boolean hasPending() {
+        synchronized (mCommitLock) {
+            synchronized (this) {
+                return !mPending.isEmpty();
+            }
+        }
+    }
+
+    private void commit() {
+        final List<Long> written = new ArrayList<Long>();
+        synchronized (mCommitLock) {
+            final Map<Long, Checkpoint> batch;
+            synchronized (this) {
+                batch = mPending;
+                mPending = new HashMap<Long, Checkpoint>();
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            final Set<Long> missing = new HashSet<Long>();
+            final SQLiteDatabase db = mDao.getOpenHelper().getWritableDatabase();
+            DownloadsDao.beginTransaction(db);
+            try {
+                for (Map.Entry<Long, Checkpoint> entry : batch.entrySet()) {
+                    final Checkpoint checkpoint = entry.getValue();
+                    if (mDao.writeProgress(entry.getKey(), checkpoint.mCurrentBytes,
+                            checkpoint.mLastMod, checkpoint.mStatus) > 0) {
+                        written.add(entry.getKey());
+                    } else {
+                        missing.add(entry.getKey());
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            synchronized (this) {
+                mMissing.addAll(missing);
+            }
+        }
+
+        if (Constants.LOGVV) {
+            Log.v(Constants.TAG, "group commit of " + written.size()
+                    + " progress checkpoints");
+        }
+        for (long id : written) {
+            mDao.notifyChange(id, false, false);
+        }
+    }
+}
@@ -0,0 +1,600 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.limpoxe.downloads;
+
+import android.util.Log;
+import android.util.Pair;
+
+import com.limpoxe.downloads.utils.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static android.text.format.DateUtils.SECOND_IN_MILLIS;
+import static com.limpoxe.downloads.Constants.TAG;
+import static com.limpoxe.downloads.Downloads.Impl.STATUS_BAD_REQUEST;
+import static com.limpoxe.downloads.Downloads.Impl.STATUS_CANNOT_RESUME;
+import static com.limpoxe.downloads.Downloads.Impl.STATUS_FILE_ERROR;
+import static com.limpoxe.downloads.Downloads.Impl.STATUS_HTTP_DATA_ERROR;
+import static com.limpoxe.downloads.Downloads.Impl.STATUS_TOO_MANY_REDIRECTS;
+import static com.limpoxe.downloads.Downloads.Impl.STATUS_UNHANDLED_HTTP_CODE;
+import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
+import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
+import static java.net.HttpURLConnection.HTTP_MOVED_TEMP;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_PARTIAL;
+import static java.net.HttpURLConnection.HTTP_PRECON_FAILED;
+import static java.net.HttpURLConnection.HTTP_SEE_OTHER;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
+
+/**
+ * Issues HTTP range requests on behalf of a single {@link DownloadInfo},
+ * following redirects and applying the same request headers as
+ * {@link DownloadThread}. Every response is checked against the requested
+ * range before any bytes are handed to the caller.
+ */
+class RangeFetcher {
+    private static final int HTTP_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+    private static final int HTTP_TEMP_REDIRECT = 307;
+
+    private static final int DEFAULT_TIMEOUT = (int) (20 * SECOND_IN_MILLIS);
+
+    private final DownloadInfo mInfo;
+
+    private URL mUrl;
+    private String mETag;
+
+    public RangeFetcher(DownloadInfo info, String eTag) throws StopRequestException {
+        mInfo = info;
+        mETag = eTag;
+        try {
+            mUrl = new URL(info.mUri);
+        } catch (MalformedURLException e) {
+            throw new StopRequestException(STATUS_BAD_REQUEST, e);
+        }
+    }
+
+    /**
+     * Return the ETag that responses are validated against, which is learned
+     * from the first response when not known up front.
+     */
+    public String getETag() {
+        return mETag;
+    }
+
+    /**
+     * Response to a single range request, with its body positioned at
+     * {@link #getStart()}.
+     */
+    public static class Response {
+        private final HttpURLConnection mConn;
+        private final long mStart;
+        private final long mEnd;
+        private final long mTotalLength;
+
+        private Response(HttpURLConnection conn, long start, long end, long totalLength) {
+            mConn = conn;
+            mStart = start;
+            mEnd = end;
+            mTotalLength = totalLength;
+        }
+
+        public long getStart() {
+            return mStart;
+        }
+
+        /** Last byte offset in this response, inclusive. */
+        public long getEnd() {
+            return mEnd;
+        }
+
+        /** Full length of the remote entity, or -1 when server didn't say. */
+        public long getTotalLength() {
+            return mTotalLength;
+        }
+
+        public String getHeaderField(String name) {
+            return mConn.getHeaderField(name);
+        }
+
+        public String getContentType() {
+            return mConn.getContentType();
+        }
+
+        public InputStream getInputStream() throws StopRequestException {
+            try {
+                return mConn.getInputStream();
+            } catch (IOException e) {
+                throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
+            }
+        }
+
+        /**
+         * Read the whole response body into memory; only suitable for small
+         * ranges such as archive directories.
+         */
+        public byte[] readBody() throws StopRequestException {
+            final long length = mEnd - mStart + 1;
+            if (length > Integer.MAX_VALUE) {
+                throw new StopRequestException(STATUS_HTTP_DATA_ERROR, "Range too large");
+            }
+            final byte[] body = new byte[(int) length];
+            final InputStream in = getInputStream();
+            try {
+                int offset = 0;
+                while (offset < body.length) {
+                    final int len = in.read(body, offset, body.length - offset);
+                    if (len == -1) {
+                        throw new StopRequestException(
+                                STATUS_HTTP_DATA_ERROR, "Range response ended early");
+                    }
+                    offset += len;
+                }
+                return body;
+            } catch (IOException e) {
+                throw new StopRequestException(
+                        STATUS_HTTP_DATA_ERROR, "Failed reading response: " + e, e);
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+        }
+
+        /**
+         * Write the response body at its offset in the given channel, returning
+         * the number of bytes written. Short bodies are treated as errors.
+         */
+        public long transferTo(FileChannel channel) throws StopRequestException {
+            final long expected = mEnd - mStart + 1;
+            final byte[] buffer = new byte[Constants.BUFFER_SIZE];
+            long written = 0;
+            InputStream in = null;
+            try {
+                in = mConn.getInputStream();
+                while (written < expected) {
+                    final int len;
+                    try {
+                        len = in.read(buffer, 0,
+                                (int) Math.min(buffer.length, expected - written));
+                    } catch (IOException e) {
+                        throw new StopRequestException(
+                                STATUS_HTTP_DATA_ERROR, "Failed reading response: " + e, e);
+                    }
+                    if (len == -1) {
+                        throw new StopRequestException(
+                                STATUS_HTTP_DATA_ERROR, "Range response ended early");
+                    }
+                    writeFully(channel, buffer, len, mStart + written);
+                    written += len;
+                }
+                return written;
+            } catch (IOException e) {
+                throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+        }
+
+        public void close() {
+            mConn.disconnect();
+        }
+    }
+
+    /**
+     * Request the given byte range of the remote entity. An {@code end} of -1
+     * requests everything after {@code start}.
+     */
+    public Response open(long start, long end) throws StopRequestException {
+        final String spec = start + "-" + (end == -1 ? "" : String.valueOf(end));
+        return openRange(spec, start, end);
+    }
+
+    /**
+     * Request the last {@code count} bytes of the remote entity, or all of it
+     * when shorter. The response always carries the entity's full length.
+     */
+    public Response openTail(long count) throws StopRequestException {
+        final Response response = openRange("-" + count, -1, -1);
+        if (response.getTotalLength() == -1
+                || response.getEnd() != response.getTotalLength() - 1) {
+            response.close();
+            throw new StopRequestException(
+                    STATUS_HTTP_DATA_ERROR, "Unexpected Content-Range for suffix request");
+        }
+        return response;
+    }
+
+    /**
+     * Issue a request with the given {@code Range} spec, checking that the
+     * response starts at {@code start} and ends no later than {@code end},
+     * when those are not -1.
+     */
+    private Response openRange(String spec, long start, long end) throws StopRequestException {
+        final HttpURLConnection conn = connect(spec);
+        boolean handedOff = false;
+        try {
+            if (conn.getResponseCode() == HTTP_OK) {
+                throw new StopRequestException(
+                        STATUS_CANNOT_RESUME, "Server does not support byte ranges");
+            }
+            final long[] range = parseContentRange(conn.getHeaderField("Content-Range"));
+            if (range == null || (start != -1 && range[0] != start)
+                    || (end != -1 && range[1] > end)) {
+                throw new StopRequestException(STATUS_HTTP_DATA_ERROR,
+                        "Unexpected Content-Range: " + conn.getHeaderField("Content-Range"));
+            }
+            learnETag(conn);
+            handedOff = true;
+            return new Response(conn, range[0], range[1], range[2]);
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
+        } finally {
+            if (!handedOff) conn.disconnect();
+        }
+    }
+
+    /**
+     * Receives each part of a multi-range fetch once it has been written.
+     */
+    interface RangeListener {
+        /**
+         * @param totalLength full length of the remote entity, or -1 when
+         *            the server didn't say
+         */
+        void onRangeWritten(long start, long length, long totalLength)
+                throws StopRequestException;
+    }
+
+    /**
+     * Fetch several inclusive {@code {start, end}} ranges, writing each at its
+     * offset in the given channel. All ranges are asked for in a single
+     * request and a {@code multipart/byteranges} response is split into its
+     * parts. Servers that ignore multi-range requests, or answer only part of
+     * them, are followed up with one request per missing range.
+     */
+    public void fetchRanges(List<long[]> ranges, FileChannel channel, RangeListener listener)
+            throws StopRequestException {
+        if (ranges.size() == 1) {
+            fetchRange(ranges.get(0), channel, listener);
+            return;
+        }
+
+        final StringBuilder spec = new StringBuilder();
+        for (long[] range : ranges) {
+            if (spec.length() > 0) {
+                spec.append(',');
+            }
+            spec.append(range[0]).append('-').append(range[1]);
+        }
+
+        final List<long[]> written = new ArrayList<long[]>();
+        final HttpURLConnection conn = connect(spec.toString());
+        try {
+            if (conn.getResponseCode() == HTTP_PARTIAL) {
+                learnETag(conn);
+                final String boundary = parseBoundary(conn.getContentType());
+                if (boundary != null) {
+                    transferMultipart(conn, boundary, ranges, channel, listener, written);
+                } else {
+                    // Server merged our ranges into one; keep it if it only
+                    // covers what we asked for
+                    final long[] range = parseContentRange(conn.getHeaderField("Content-Range"));
+                    if (range != null && findContaining(ranges, range[0], range[1]) != null) {
+                        transferPart(conn.getInputStream(), range, channel, listener);
+                        written.add(range);
+                    }
+                }
+            } else if (Constants.LOGV) {
+                Log.v(TAG, "Multi-range request refused; using separate requests");
+            }
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
+        } finally {
+            conn.disconnect();
+        }
+
+        for (long[] range : ranges) {
+            if (findContaining(written, range[0], range[1]) == null) {
+                fetchRange(range, channel, listener);
+            }
+        }
+    }
+
+    private void fetchRange(long[] range, FileChannel channel, RangeListener listener)
+            throws StopRequestException {
+        final Response response = open(range[0], range[1]);
+        try {
+            final long written = response.transferTo(channel);
+            listener.onRangeWritten(response.getStart(), written, response.getTotalLength());
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Split a {@code multipart/byteranges} body into its parts, writing
+     * those that fall inside a requested range.
+     */
+    private void transferMultipart(HttpURLConnection conn, String boundary, List<long[]> ranges,
+            FileChannel channel, RangeListener listener, List<long[]> written)
+            throws IOException, StopRequestException {
+        final String delimiter = "--" + boundary;
+        final InputStream in = new BufferedInputStream(conn.getInputStream());
+        try {
+            String line = readLine(in);
+            while (line != null && !line.startsWith(delimiter)) {
+                // Skip any preamble
+                line = readLine(in);
+            }
+            while (line != null && line.startsWith(delimiter)
+                    && !line.startsWith(delimiter + "--")) {
+                long[] range = null;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    final int colon = line.indexOf(':');
+                    if (colon != -1 && "Content-Range".equalsIgnoreCase(
+                            line.substring(0, colon).trim())) {
+                        range = parseContentRange(line.substring(colon + 1));
+                    }
+                }
+                if (line == null) {
+                    break;
+                }
+                if (range == null || findContaining(ranges, range[0], range[1]) == null) {
+                    throw new StopRequestException(STATUS_HTTP_DATA_ERROR,
+                            "Unexpected part in multipart/byteranges response");
+                }
+                transferPart(in, range, channel, listener);
+                written.add(range);
+
+                // Each part body is followed by CRLF and the next delimiter
+                line = readLine(in);
+                if (line != null && line.length() == 0) {
+                    line = readLine(in);
+                }
+            }
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private static void transferPart(InputStream in, long[] range, FileChannel channel,
+            RangeListener listener) throws StopRequestException {
+        final long expected = range[1] - range[0] + 1;
+        final byte[] buffer = new byte[Constants.BUFFER_SIZE];
+        long written = 0;
+        while (written < expected) {
+            final int len;
+            try {
+                len = in.read(buffer, 0, (int) Math.min(buffer.length, expected - written));
+            } catch (IOException e) {
+                throw new StopRequestException(
+                        STATUS_HTTP_DATA_ERROR, "Failed reading response: " + e, e);
+            }
+            if (len == -1) {
+                throw new StopRequestException(
+                        STATUS_HTTP_DATA_ERROR, "Range response ended early");
+            }
+            writeFully(channel, buffer, len, range[0] + written);
+            written += len;
+        }
+        listener.onRangeWritten(range[0], written, range[2]);
+    }
+
+    private static long[] findContaining(List<long[]> ranges, long start, long end) {
+        for (long[] range : ranges) {
+            if (range[0] <= start && end <= range[1]) {
+                return range;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the boundary of a {@code multipart/byteranges} content type, or
+     * {@code null} for any other type.
+     */
+    static String parseBoundary(String contentType) {
+        if (contentType == null || !contentType.trim().regionMatches(
+                true, 0, "multipart/byteranges", 0, 20)) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (param.regionMatches(true, 0, "boundary=", 0, 9)) {
+                String boundary = param.substring(9).trim();
+                if (boundary.length() > 1 && boundary.startsWith("\"")
+                        && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+                return boundary.length() > 0 ? boundary : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read a single CRLF or LF terminated line of multipart headers, or
+     * {@code null} at end of stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder builder = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                final int len = builder.length();
+                if (len > 0 && builder.charAt(len - 1) == '\r') {
+                    builder.setLength(len - 1);
+                }
+                return builder.toString();
+            }
+            builder.append((char) c);
+        }
+        return builder.length() > 0 ? builder.toString() : null;
+    }
+
+    private void learnETag(HttpURLConnection conn) {
+        if (mETag == null) {
+            mETag = conn.getHeaderField("ETag");
+        }
+    }
+
+    /**
+     * Send a request with the given {@code Range} spec, following redirects,
+     * and return the connection once it answers with 200 or 206. Every other
+     * response is mapped to a {@link StopRequestException}.
+     */
+    private HttpURLConnection connect(String spec) throws StopRequestException {
+        int redirectionCount = 0;
+        while (redirectionCount++ < Constants.MAX_REDIRECTS) {
+            HttpURLConnection conn = null;
+            boolean handedOff = false;
+            try {
+                conn = (HttpURLConnection) mUrl.openConnection();
+                conn.setInstanceFollowRedirects(false);
+                conn.setConnectTimeout(DEFAULT_TIMEOUT);
+                conn.setReadTimeout(DEFAULT_TIMEOUT);
+
+                addRequestHeaders(conn);
+                conn.addRequestProperty("Range", "bytes=" + spec);
+
+                final int responseCode = conn.getResponseCode();
+                switch (responseCode) {
+                    case HTTP_OK:
+                    case HTTP_PARTIAL:
+                        handedOff = true;
+                        return conn;
+
+                    case HTTP_MOVED_PERM:
+                    case HTTP_MOVED_TEMP:
+                    case HTTP_SEE_OTHER:
+                    case HTTP_TEMP_REDIRECT:
+                        mUrl = new URL(mUrl, conn.getHeaderField("Location"));
+                        continue;
+
+                    case HTTP_PRECON_FAILED:
+                        throw new StopRequestException(
+                                STATUS_CANNOT_RESUME, "Precondition failed");
+
+                    case HTTP_REQUESTED_RANGE_NOT_SATISFIABLE:
+                        throw new StopRequestException(
+                                STATUS_CANNOT_RESUME, "Requested range not satisfiable");
+
+                    case HTTP_UNAVAILABLE:
+                        throw new StopRequestException(
+                                HTTP_UNAVAILABLE, conn.getResponseMessage());
+
+                    case HTTP_INTERNAL_ERROR:
+                        throw new StopRequestException(
+                                HTTP_INTERNAL_ERROR, conn.getResponseMessage());
+
+                    default:
+                        StopRequestException.throwUnhandledHttpError(
+                                responseCode, conn.getResponseMessage());
+                }
+
+            } catch (IOException e) {
+                if (e instanceof ProtocolException
+                        && e.getMessage().startsWith("Unexpected status line")) {
+                    throw new StopRequestException(STATUS_UNHANDLED_HTTP_CODE, e);
+                } else {
+                    throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
+                }
+
+            } finally {
+                if (conn != null && !handedOff) conn.disconnect();
+            }
+        }
+
+        throw new StopRequestException(STATUS_TOO_MANY_REDIRECTS, "Too many redirects");
+    }
+
+    private void addRequestHeaders(HttpURLConnection conn) {
+        for (Pair<String, String> header : mInfo.getHeaders()) {
+            conn.addRequestProperty(header.first, header.second);
+        }
+
+        if (conn.getRequestProperty("User-Agent") == null) {
+            conn.addRequestProperty("User-Agent", mInfo.getUserAgent());
+        }
+
+        // Byte offsets only make sense against the identity encoding
+        conn.setRequestProperty("Accept-Encoding", "identity");
+
+        // Unlike DownloadThread we leave connection reuse enabled, since range
+        // responses are bounded and typically followed by another request.
+
+        if (mETag != null) {
+            conn.addRequestProperty("If-Match", mETag);
+        }
+    }
+
+    /**
+     * Parse a {@code Content-Range} header of the form
+     * {@code bytes start-end/total}, returning {@code {start, end, total}}
+     * with a total of -1 when unknown, or {@code null} when malformed.
+     */
+    public static long[] parseContentRange(String header) {
+        if (header == null) {
+            return null;
+        }
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes", 0, 5)) {
+            return null;
+        }
+        final int dash = header.indexOf('-');
+        final int slash = header.indexOf('/');
+        if (dash == -1 || slash == -1 || dash > slash) {
+            return null;
+        }
+        try {
+            final long start = Long.parseLong(header.substring(5, dash).trim());
+            final long end = Long.parseLong(header.substring(dash + 1, slash).trim());
+            final String totalString = header.substring(slash + 1).trim();
+            final long total = "*".equals(totalString) ? -1 : Long.parseLong(totalString);
+            if (start < 0 || end < start || (total != -1 && end >= total)) {
+                return null;
+            }
+            return new long[] { start, end, total };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write the given bytes at an absolute offset, leaving the channel
+     * position untouched so concurrent writers don't interfere.
+     */
+    static void writeFully(FileChannel channel, byte[] buffer, int len, long position)
+            throws StopRequestException {
+        final ByteBuffer buf = ByteBuffer.wrap(buffer, 0, len);
+        try {
+            while (buf.hasRemaining()) {
+                position += channel.write(buf, position);
+            }
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        }
+    }
+}
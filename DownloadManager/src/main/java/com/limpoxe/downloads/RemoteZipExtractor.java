@@ -0,0 +1,521 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.limpoxe.downloads;
+
+import android.util.Log;
+
+import com.limpoxe.downloads.utils.IoUtils;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static com.limpoxe.downloads.Constants.TAG;
+import static com.limpoxe.downloads.Downloads.Impl.STATUS_BAD_REQUEST;
+import static com.limpoxe.downloads.Downloads.Impl.STATUS_FILE_ERROR;
+import static com.limpoxe.downloads.Downloads.Impl.STATUS_HTTP_DATA_ERROR;
+
+/**
+ * Extracts selected entries of a remote ZIP archive using HTTP range requests:
+ * one suffix request for the end of central directory record, one for the
+ * central directory itself, and one per entry for its local header and data.
+ * Nothing outside those ranges is transferred.
+ */
+class RemoteZipExtractor {
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int EOCD_LEN = 22;
+    private static final int MAX_COMMENT_LEN = 0xffff;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_LOCATOR_LEN = 20;
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+    private static final int ZIP64_EOCD_LEN = 56;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int CEN_LEN = 46;
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int LOC_LEN = 30;
+
+    /**
+     * Extra bytes requested after an entry's data, so that the local header's
+     * name and extra field usually fit in the same request.
+     */
+    private static final int LOC_SLACK = 1024;
+
+    private static final int FLAG_ENCRYPTED = 0x0001;
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Close enough to the legacy IBM437 names for lookup of ASCII names
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    /**
+     * Receives progress as compressed bytes are consumed.
+     */
+    interface ProgressListener {
+        /**
+         * @param compressedBytes newly consumed bytes of compressed data
+         * @param outFd the entry file being written
+         */
+        void onProgress(long compressedBytes, FileDescriptor outFd) throws StopRequestException;
+    }
+
+    /**
+     * Central directory record of a single entry.
+     */
+    static class Entry {
+        String name;
+        int flags;
+        int method;
+        long crc;
+        long compressedSize;
+        long size;
+        long localHeaderOffset;
+    }
+
+    private final RangeFetcher mFetcher;
+    private final File mDir;
+
+    private long mArchiveLength = -1;
+
+    public RemoteZipExtractor(RangeFetcher fetcher, File dir) {
+        mFetcher = fetcher;
+        mDir = dir;
+    }
+
+    /**
+     * Read the remote central directory and return the entries with the given
+     * names, in the same order.
+     */
+    public List<Entry> resolve(String[] names) throws StopRequestException {
+        final byte[] tail;
+        final long tailStart;
+        final RangeFetcher.Response response = mFetcher.openTail(EOCD_LEN + MAX_COMMENT_LEN);
+        try {
+            tail = response.readBody();
+            tailStart = response.getStart();
+            mArchiveLength = response.getTotalLength();
+        } finally {
+            response.close();
+        }
+
+        int eocd = -1;
+        for (int i = tail.length - EOCD_LEN; i >= 0; i--) {
+            if (getInt(tail, i) == EOCD_SIG) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) {
+            throw new StopRequestException(STATUS_HTTP_DATA_ERROR, "Not a ZIP archive");
+        }
+
+        long cdSize = getUInt(tail, eocd + 12);
+        long cdOffset = getUInt(tail, eocd + 16);
+        if (cdSize == 0xffffffffL || cdOffset == 0xffffffffL
+                || getUShort(tail, eocd + 10) == 0xffff) {
+            final int locator = eocd - ZIP64_LOCATOR_LEN;
+            if (locator < 0 || getInt(tail, locator) != ZIP64_LOCATOR_SIG) {
+                throw new StopRequestException(
+                        STATUS_HTTP_DATA_ERROR, "Missing ZIP64 end of central directory");
+            }
+            final byte[] zip64 = fetch(getLong(tail, locator + 8), ZIP64_EOCD_LEN,
+                    tail, tailStart);
+            if (getInt(zip64, 0) != ZIP64_EOCD_SIG) {
+                throw new StopRequestException(
+                        STATUS_HTTP_DATA_ERROR, "Bad ZIP64 end of central directory");
+            }
+            cdSize = getLong(zip64, 40);
+            cdOffset = getLong(zip64, 48);
+        }
+
+        final HashSet<String> wanted = new HashSet<String>(Arrays.asList(names));
+        final HashMap<String, Entry> found = new HashMap<String, Entry>();
+        final byte[] cd = fetch(cdOffset, cdSize, tail, tailStart);
+        int pos = 0;
+        while (pos + CEN_LEN <= cd.length) {
+            if (getInt(cd, pos) != CEN_SIG) {
+                throw new StopRequestException(
+                        STATUS_HTTP_DATA_ERROR, "Bad central directory entry");
+            }
+            final int nameLen = getUShort(cd, pos + 28);
+            final int extraLen = getUShort(cd, pos + 30);
+            final int commentLen = getUShort(cd, pos + 32);
+            if (pos + CEN_LEN + nameLen + extraLen + commentLen > cd.length) {
+                throw new StopRequestException(
+                        STATUS_HTTP_DATA_ERROR, "Truncated central directory");
+            }
+
+            final Entry entry = new Entry();
+            entry.flags = getUShort(cd, pos + 8);
+            entry.name = new String(cd, pos + CEN_LEN, nameLen,
+                    (entry.flags & FLAG_UTF8) != 0 ? UTF_8 : LATIN_1);
+            if (wanted.contains(entry.name)) {
+                entry.method = getUShort(cd, pos + 10);
+                entry.crc = getUInt(cd, pos + 16);
+                entry.compressedSize = getUInt(cd, pos + 20);
+                entry.size = getUInt(cd, pos + 24);
+                entry.localHeaderOffset = getUInt(cd, pos + 42);
+                readZip64Extra(entry, cd, pos + CEN_LEN + nameLen, extraLen);
+                found.put(entry.name, entry);
+            }
+            pos += CEN_LEN + nameLen + extraLen + commentLen;
+        }
+
+        final List<Entry> entries = new ArrayList<Entry>(names.length);
+        for (String name : names) {
+            final Entry entry = found.get(name);
+            if (entry == null) {
+                throw new StopRequestException(STATUS_BAD_REQUEST, "No such ZIP entry: " + name);
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Return whether the given entry was already extracted intact, such as by
+     * an earlier attempt at this download.
+     */
+    public boolean isExtracted(Entry entry) {
+        final File file;
+        try {
+            file = getEntryFile(mDir, entry.name);
+        } catch (IOException e) {
+            return false;
+        }
+        if (isDirectory(entry)) {
+            return file.isDirectory();
+        }
+        if (!file.isFile() || file.length() != entry.size) {
+            return false;
+        }
+
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[Constants.BUFFER_SIZE];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, len);
+            }
+            return crc.getValue() == entry.crc;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Fetch, decompress and verify a single entry into the destination
+     * directory, replacing anything already there.
+     */
+    public void extract(Entry entry, ProgressListener listener) throws StopRequestException {
+        if ((entry.flags & FLAG_ENCRYPTED) != 0) {
+            throw new StopRequestException(
+                    STATUS_BAD_REQUEST, "Encrypted ZIP entries are not supported: " + entry.name);
+        }
+        if (entry.method != METHOD_STORED && entry.method != METHOD_DEFLATED) {
+            throw new StopRequestException(STATUS_BAD_REQUEST,
+                    "Unsupported compression method " + entry.method + ": " + entry.name);
+        }
+
+        final File file;
+        try {
+            file = getEntryFile(mDir, entry.name);
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_BAD_REQUEST, e);
+        }
+        if (isDirectory(entry)) {
+            if (!file.isDirectory() && !file.mkdirs()) {
+                throw new StopRequestException(STATUS_FILE_ERROR, "Failed to create " + file);
+            }
+            return;
+        }
+        final File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new StopRequestException(STATUS_FILE_ERROR, "Failed to create " + parent);
+        }
+
+        RangeFetcher.Response response = null;
+        InputStream in = null;
+        FileOutputStream out = null;
+        try {
+            long end = entry.localHeaderOffset + LOC_LEN + entry.compressedSize + LOC_SLACK - 1;
+            if (mArchiveLength != -1) {
+                end = Math.min(end, mArchiveLength - 1);
+            }
+            response = mFetcher.open(entry.localHeaderOffset, end);
+            in = response.getInputStream();
+
+            final byte[] header = new byte[LOC_LEN];
+            readFully(in, header);
+            if (getInt(header, 0) != LOC_SIG) {
+                throw new StopRequestException(
+                        STATUS_HTTP_DATA_ERROR, "Bad local header: " + entry.name);
+            }
+            final long dataStart = entry.localHeaderOffset + LOC_LEN
+                    + getUShort(header, 26) + getUShort(header, 28);
+            if (dataStart + entry.compressedSize - 1 <= response.getEnd()) {
+                skipFully(in, dataStart - entry.localHeaderOffset - LOC_LEN);
+            } else {
+                // Unusually long local extra field; ask again for just the data
+                IoUtils.closeQuietly(in);
+                response.close();
+                response = mFetcher.open(dataStart, dataStart + entry.compressedSize - 1);
+                in = response.getInputStream();
+            }
+
+            out = new FileOutputStream(file);
+            final long[] result = copyEntry(entry, in, out, listener);
+            if (result[0] != entry.size || result[1] != entry.crc) {
+                throw new StopRequestException(
+                        STATUS_HTTP_DATA_ERROR, "CRC mismatch: " + entry.name);
+            }
+            out.getFD().sync();
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        } finally {
+            IoUtils.closeQuietly(in);
+            IoUtils.closeQuietly(out);
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+
+    /**
+     * Stream the compressed data of an entry into the output.
+     *
+     * @return the number of bytes written and their CRC-32.
+     */
+    private static long[] copyEntry(Entry entry, InputStream in, FileOutputStream out,
+            ProgressListener listener) throws IOException, StopRequestException {
+        final Inflater inflater = (entry.method == METHOD_DEFLATED) ? new Inflater(true) : null;
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[Constants.BUFFER_SIZE];
+        final byte[] inflated = (inflater != null) ? new byte[Constants.BUFFER_SIZE] : null;
+        final FileDescriptor outFd = out.getFD();
+        long written = 0;
+        try {
+            long remaining = entry.compressedSize;
+            while (remaining > 0) {
+                final int len;
+                try {
+                    len = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                } catch (IOException e) {
+                    throw new StopRequestException(
+                            STATUS_HTTP_DATA_ERROR, "Failed reading response: " + e, e);
+                }
+                if (len == -1) {
+                    throw new StopRequestException(
+                            STATUS_HTTP_DATA_ERROR, "Range response ended early");
+                }
+                remaining -= len;
+
+                if (inflater == null) {
+                    out.write(buffer, 0, len);
+                    crc.update(buffer, 0, len);
+                    written += len;
+                } else {
+                    inflater.setInput(buffer, 0, len);
+                    written += drain(inflater, inflated, out, crc);
+                    if (remaining == 0 && !inflater.finished()) {
+                        // Raw inflate may want one byte past the end of data
+                        inflater.setInput(new byte[1]);
+                        written += drain(inflater, inflated, out, crc);
+                    }
+                }
+
+                listener.onProgress(len, outFd);
+            }
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+        return new long[] { written, crc.getValue() };
+    }
+
+    private static int drain(Inflater inflater, byte[] buffer, FileOutputStream out, CRC32 crc)
+            throws IOException, StopRequestException {
+        int total = 0;
+        try {
+            int len;
+            while ((len = inflater.inflate(buffer)) > 0) {
+                out.write(buffer, 0, len);
+                crc.update(buffer, 0, len);
+                total += len;
+            }
+        } catch (DataFormatException e) {
+            throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
+        }
+        if (inflater.needsDictionary()) {
+            throw new StopRequestException(STATUS_HTTP_DATA_ERROR, "Unexpected preset dictionary");
+        }
+        return total;
+    }
+
+    /**
+     * Return bytes of the archive, reusing the given buffer when it already
+     * covers them.
+     */
+    private byte[] fetch(long offset, long length, byte[] buffer, long bufferStart)
+            throws StopRequestException {
+        if (length > Integer.MAX_VALUE) {
+            throw new StopRequestException(STATUS_HTTP_DATA_ERROR, "Central directory too large");
+        }
+        if (length == 0) {
+            return new byte[0];
+        }
+        if (offset >= bufferStart && offset + length <= bufferStart + buffer.length) {
+            final int from = (int) (offset - bufferStart);
+            return Arrays.copyOfRange(buffer, from, from + (int) length);
+        }
+
+        final RangeFetcher.Response response = mFetcher.open(offset, offset + length - 1);
+        try {
+            final byte[] body = response.readBody();
+            if (body.length != length) {
+                throw new StopRequestException(STATUS_HTTP_DATA_ERROR, "Short range response");
+            }
+            return body;
+        } finally {
+            response.close();
+        }
+    }
+
+    private static boolean isDirectory(Entry entry) {
+        return entry.name.endsWith("/");
+    }
+
+    private static void readZip64Extra(Entry entry, byte[] buf, int offset, int length) {
+        final int end = offset + length;
+        while (offset + 4 <= end) {
+            final int id = getUShort(buf, offset);
+            final int size = getUShort(buf, offset + 2);
+            offset += 4;
+            if (id == ZIP64_EXTRA_ID) {
+                // Only the fields saturated in the fixed record are present
+                int pos = offset;
+                if (entry.size == 0xffffffffL && pos + 8 <= offset + size) {
+                    entry.size = getLong(buf, pos);
+                    pos += 8;
+                }
+                if (entry.compressedSize == 0xffffffffL && pos + 8 <= offset + size) {
+                    entry.compressedSize = getLong(buf, pos);
+                    pos += 8;
+                }
+                if (entry.localHeaderOffset == 0xffffffffL && pos + 8 <= offset + size) {
+                    entry.localHeaderOffset = getLong(buf, pos);
+                }
+                return;
+            }
+            offset += size;
+        }
+    }
+
+    /**
+     * Return where the named entry is extracted, refusing names that would
+     * escape the destination directory.
+     */
+    static File getEntryFile(File dir, String name) throws IOException {
+        final File file = new File(dir, name);
+        final String dirPath = dir.getCanonicalPath() + File.separator;
+        if (!file.getCanonicalPath().startsWith(dirPath)) {
+            throw new IOException("ZIP entry outside of destination: " + name);
+        }
+        return file;
+    }
+
+    /**
+     * Delete the extracted entries with the given names, along with the
+     * destination directory itself once it is empty.
+     */
+    static void deleteEntries(File dir, String[] names) {
+        for (String name : names) {
+            try {
+                final File file = getEntryFile(dir, name);
+                if (file.exists() && !file.delete()) {
+                    Log.w(TAG, "Failed to delete " + file);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Skipping " + name + ": " + e);
+            }
+        }
+        // Only removed when nothing else was stored alongside the entries
+        dir.delete();
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws StopRequestException {
+        try {
+            int offset = 0;
+            while (offset < buffer.length) {
+                final int len = in.read(buffer, offset, buffer.length - offset);
+                if (len == -1) {
+                    throw new StopRequestException(
+                            STATUS_HTTP_DATA_ERROR, "Range response ended early");
+                }
+                offset += len;
+            }
+        } catch (IOException e) {
+            throw new StopRequestException(
+                    STATUS_HTTP_DATA_ERROR, "Failed reading response: " + e, e);
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws StopRequestException {
+        final byte[] buffer = new byte[(int) Math.min(count, Constants.BUFFER_SIZE)];
+        while (count > 0) {
+            final byte[] chunk = (count >= buffer.length) ? buffer : new byte[(int) count];
+            readFully(in, chunk);
+            count -= chunk.length;
+        }
+    }
+
+    private static int getUShort(byte[] buf, int offset) {
+        return (buf[offset] & 0xff) | ((buf[offset + 1] & 0xff) << 8);
+    }
+
+    private static int getInt(byte[] buf, int offset) {
+        return getUShort(buf, offset) | (getUShort(buf, offset + 2) << 16);
+    }
+
+    private static long getUInt(byte[] buf, int offset) {
+        return getInt(buf, offset) & 0xffffffffL;
+    }
+
+    private static long getLong(byte[] buf, int offset) {
+        return getUInt(buf, offset) | (getUInt(buf, offset + 4) << 32);
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.limpoxe.downloads;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.limpoxe.downloads.utils.GuardedBy;
+import com.limpoxe.downloads.utils.IoUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static com.limpoxe.downloads.Constants.TAG;
+import static com.limpoxe.downloads.Downloads.Impl.STATUS_CANNOT_RESUME;
+import static com.limpoxe.downloads.Downloads.Impl.STATUS_FILE_ERROR;
+
+/**
+ * Backing state of a download requested with
+ * {@link DownloadManager.Request#setSparse(boolean)}. The destination file is
+ * allocated at its full length up front, and blocks are fetched with HTTP range
+ * requests as readers touch them. A {@link BlockBitmap} persisted in the
+ * download row records which blocks are present, so fetched data survives
+ * process restarts.
+ * <p>
+ * A single instance per download is shared between every open
+ * {@link SparseFile} and the background fill run by {@link DownloadThread}, so
+ * that no block is fetched twice.
+ */
+class SparseDownload {
+    private static final int BLOCK_SIZE = Constants.SPARSE_BLOCK_SIZE;
+
+    @GuardedBy("sInstances")
+    private static final HashMap<Long, SparseDownload> sInstances =
+            new HashMap<Long, SparseDownload>();
+
+    private final Context mContext;
+    private final DownloadInfo mInfo;
+    private final RangeFetcher mFetcher;
+
+    /** Serializes network fetches, so concurrent readers wait on one fetch. */
+    private final Object mFetchLock = new Object();
+
+    @GuardedBy("sInstances")
+    private int mRefCount;
+
+    @GuardedBy("this")
+    private RandomAccessFile mFile;
+    @GuardedBy("this")
+    private FileChannel mChannel;
+    @GuardedBy("this")
+    private BlockBitmap mBlocks;
+    @GuardedBy("this")
+    private String mFileName;
+    @GuardedBy("this")
+    private String mMimeType;
+    @GuardedBy("this")
+    private long mTotalBytes;
+
+    private SparseDownload(Context context, DownloadInfo info, byte[] blockMap)
+            throws StopRequestException {
+        mContext = context;
+        mInfo = info;
+        mFetcher = new RangeFetcher(info, info.mETag);
+        mFileName = info.mFileName;
+        mMimeType = info.mMimeType;
+        mTotalBytes = info.mTotalBytes;
+        if (mTotalBytes > 0) {
+            mBlocks = BlockBitmap.fromByteArray(
+                    BlockBitmap.blockCount(mTotalBytes, BLOCK_SIZE), blockMap);
+        }
+    }
+
+    /**
+     * Return the shared state for the given sparse download, which must be
+     * balanced with a call to {@link #release()}.
+     */
+    public static SparseDownload acquire(Context context, long id) throws IOException {
+        synchronized (sInstances) {
+            SparseDownload download = sInstances.get(id);
+            if (download == null) {
+                download = load(context, id);
+                sInstances.put(id, download);
+            }
+            download.mRefCount++;
+            return download;
+        }
+    }
+
+    public void release() {
+        synchronized (sInstances) {
+            if (--mRefCount == 0) {
+                sInstances.remove(mInfo.mId);
+                synchronized (this) {
+                    IoUtils.closeQuietly(mFile);
+                    mFile = null;
+                    mChannel = null;
+                }
+            }
+        }
+    }
+
+    private static SparseDownload load(Context context, long id) throws IOException {
+        final DownloadsDao dao = DownloadsDao.getInstance(context);
+        final Cursor cursor = dao.queryDownload(id, null);
+        if (cursor == null) {
+            throw new FileNotFoundException("Missing cursor for download " + id);
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                throw new FileNotFoundException("No download " + id);
+            }
+            final DownloadInfo info = new DownloadInfo.Reader(dao, cursor).newDownloadInfo(
+                    context, new DownloadNotifier(context));
+            if (info.mSparse == Downloads.Impl.SPARSE_NONE || info.mDeleted) {
+                throw new FileNotFoundException("Download " + id + " is not sparse");
+            }
+            final byte[] blockMap = cursor.getBlob(
+                    cursor.getColumnIndexOrThrow(Downloads.Impl.COLUMN_BLOCK_MAP));
+            return new SparseDownload(context, info, blockMap);
+        } catch (StopRequestException e) {
+            throw asIOException(e);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public synchronized String getFileName() {
+        return mFileName;
+    }
+
+    public synchronized String getMimeType() {
+        return mMimeType;
+    }
+
+    public String getETag() {
+        return mFetcher.getETag();
+    }
+
+    /**
+     * Return full length of the remote entity, fetching the first blocks to
+     * learn it when needed.
+     */
+    public long length() throws IOException {
+        try {
+            ensurePrepared();
+        } catch (StopRequestException e) {
+            throw asIOException(e);
+        }
+        synchronized (this) {
+            return mTotalBytes;
+        }
+    }
+
+    /**
+     * Return number of bytes covered by blocks already present.
+     */
+    public synchronized long getPresentBytes() {
+        if (mBlocks == null) {
+            return 0;
+        }
+        final int lastBlock = mBlocks.size() - 1;
+        long bytes = (long) mBlocks.cardinality() * BLOCK_SIZE;
+        if (mBlocks.get(lastBlock)) {
+            bytes -= (long) (lastBlock + 1) * BLOCK_SIZE - mTotalBytes;
+        }
+        return bytes;
+    }
+
+    public synchronized boolean isComplete() {
+        return mBlocks != null && mBlocks.isComplete();
+    }
+
+    /**
+     * Read bytes at the given position, fetching any missing blocks first.
+     *
+     * @return number of bytes read, or -1 at end of file.
+     */
+    public int read(long position, byte[] buffer, int offset, int count) throws IOException {
+        final FileChannel channel;
+        try {
+            ensurePrepared();
+            synchronized (this) {
+                if (position >= mTotalBytes) {
+                    return -1;
+                }
+                count = (int) Math.min(count, mTotalBytes - position);
+            }
+            if (count == 0) {
+                return 0;
+            }
+            ensureRange(position, count);
+            synchronized (this) {
+                channel = mChannel;
+            }
+        } catch (StopRequestException e) {
+            throw asIOException(e);
+        }
+
+        final ByteBuffer buf = ByteBuffer.wrap(buffer, offset, count);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position() - offset) == -1) {
+                break;
+            }
+        }
+        return buf.position() - offset;
+    }
+
+    /**
+     * Fetch the next missing blocks, up to the given count. Blocks need not
+     * be contiguous; scattered holes are fetched with a single multi-range
+     * request.
+     *
+     * @return if more blocks are still missing.
+     */
+    public boolean fillNext(int maxBlocks) throws StopRequestException {
+        ensurePrepared();
+        synchronized (mFetchLock) {
+            final List<int[]> runs;
+            synchronized (this) {
+                runs = findMissingRunsLocked(0, mBlocks.size() - 1, maxBlocks);
+            }
+            if (runs.isEmpty()) {
+                return false;
+            }
+            fetchBlocks(runs);
+            return !isComplete();
+        }
+    }
+
+    /**
+     * Make sure every block covering the given range is present, reading
+     * ahead past its end while neighbouring blocks are also missing.
+     */
+    private void ensureRange(long position, int count) throws StopRequestException {
+        final int firstBlock = (int) (position / BLOCK_SIZE);
+        final int lastBlock = (int) ((position + count - 1) / BLOCK_SIZE);
+        synchronized (mFetchLock) {
+            while (true) {
+                final List<int[]> runs;
+                synchronized (this) {
+                    if (mBlocks.nextClearBlock(firstBlock) > lastBlock) {
+                        return;
+                    }
+                    final int limit = Math.min(lastBlock + Constants.SPARSE_READ_AHEAD_BLOCKS,
+                            mBlocks.size() - 1);
+                    runs = findMissingRunsLocked(firstBlock, limit, Integer.MAX_VALUE);
+                }
+                fetchBlocks(runs);
+            }
+        }
+    }
+
+    /**
+     * Collect inclusive {@code {first, last}} runs of missing blocks between
+     * the given blocks, stopping at {@link Constants#MAX_RANGES_PER_REQUEST}
+     * runs or the given number of blocks.
+     */
+    private List<int[]> findMissingRunsLocked(int from, int to, int maxBlocks) {
+        final List<int[]> runs = new ArrayList<int[]>();
+        int first = mBlocks.nextClearBlock(from);
+        while (first <= to && maxBlocks > 0 && runs.size() < Constants.MAX_RANGES_PER_REQUEST) {
+            int last = first;
+            while (last < to && last + 1 - first < maxBlocks && !mBlocks.get(last + 1)) {
+                last++;
+            }
+            runs.add(new int[] { first, last });
+            maxBlocks -= last - first + 1;
+            first = (last + 1 < mBlocks.size()) ? mBlocks.nextClearBlock(last + 1) : to + 1;
+        }
+        return runs;
+    }
+
+    /**
+     * Open the destination file, probing the server for its length and
+     * filename when this is the first touch of the download.
+     */
+    private void ensurePrepared() throws StopRequestException {
+        synchronized (mFetchLock) {
+            synchronized (this) {
+                if (mChannel != null) {
+                    return;
+                }
+                if (mFileName != null && mBlocks != null && new File(mFileName).exists()) {
+                    openFileLocked();
+                    return;
+                }
+            }
+            probe();
+        }
+    }
+
+    private void probe() throws StopRequestException {
+        final long probeLength = (long) (Constants.SPARSE_READ_AHEAD_BLOCKS + 1) * BLOCK_SIZE;
+        final RangeFetcher.Response response = mFetcher.open(0, probeLength - 1);
+        try {
+            final long totalBytes = response.getTotalLength();
+            if (totalBytes <= 0) {
+                throw new StopRequestException(
+                        STATUS_CANNOT_RESUME, "can't know size of download, giving up");
+            }
+
+            synchronized (this) {
+                if (mMimeType == null) {
+                    mMimeType = StorageUtils.normalizeMimeType(response.getContentType());
+                }
+                if (mFileName == null) {
+                    try {
+                        mFileName = Helpers.generateSaveFile(mContext, mInfo.mUri, mInfo.mHint,
+                                response.getHeaderField("Content-Disposition"),
+                                response.getHeaderField("Content-Location"), mMimeType,
+                                mInfo.mDestination);
+                    } catch (IOException e) {
+                        throw new StopRequestException(
+                                STATUS_FILE_ERROR, "Failed to generate filename: " + e);
+                    }
+                }
+                mTotalBytes = totalBytes;
+                mBlocks = new BlockBitmap(BlockBitmap.blockCount(totalBytes, BLOCK_SIZE));
+                openFileLocked();
+                try {
+                    // Reserve full length; filesystems keep unwritten blocks sparse
+                    mFile.setLength(totalBytes);
+                } catch (IOException e) {
+                    throw new StopRequestException(STATUS_FILE_ERROR, e);
+                }
+            }
+
+            final long written = response.transferTo(mChannel);
+            markPresent(response.getStart(), written);
+        } finally {
+            response.close();
+        }
+        persist();
+    }
+
+    private void openFileLocked() throws StopRequestException {
+        try {
+            mFile = new RandomAccessFile(mFileName, "rw");
+            mChannel = mFile.getChannel();
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        }
+    }
+
+    /**
+     * Fetch the given inclusive runs of blocks and record them as present.
+     * Fails when the server's answers don't complete a single new block,
+     * since asking again would only get the same answers.
+     */
+    private void fetchBlocks(List<int[]> runs) throws StopRequestException {
+        final long totalBytes;
+        final FileChannel channel;
+        final List<long[]> ranges = new ArrayList<long[]>(runs.size());
+        synchronized (this) {
+            totalBytes = mTotalBytes;
+            channel = mChannel;
+            for (int[] run : runs) {
+                ranges.add(new long[] {
+                        (long) run[0] * BLOCK_SIZE,
+                        Math.min((long) (run[1] + 1) * BLOCK_SIZE, totalBytes) - 1
+                });
+            }
+        }
+
+        if (Constants.LOGVV) {
+            final StringBuilder builder = new StringBuilder();
+            for (int[] run : runs) {
+                builder.append(' ').append(run[0]).append('-').append(run[1]);
+            }
+            Log.v(TAG, "[" + mInfo.mId + "] fetching blocks" + builder);
+        }
+
+        final int[] marked = new int[1];
+        try {
+            mFetcher.fetchRanges(ranges, channel, new RangeFetcher.RangeListener() {
+                @Override
+                public void onRangeWritten(long start, long length, long totalLength)
+                        throws StopRequestException {
+                    if (totalLength != -1 && totalLength != totalBytes) {
+                        throw new StopRequestException(
+                                STATUS_CANNOT_RESUME, "Remote length changed");
+                    }
+                    marked[0] += markPresent(start, length);
+                }
+            });
+        } finally {
+            // Keep whatever landed, even when a later range failed
+            persist();
+        }
+        if (marked[0] == 0) {
+            throw new StopRequestException(STATUS_CANNOT_RESUME,
+                    "Server returned no whole missing blocks");
+        }
+    }
+
+    /**
+     * Mark every block entirely covered by the given written range.
+     *
+     * @return the number of blocks that weren't present before.
+     */
+    private synchronized int markPresent(long start, long written) {
+        final long end = start + written;
+        // Servers may answer with a range that isn't block aligned
+        final int firstBlock = (int) ((start + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        int marked = 0;
+        for (int block = firstBlock; block < mBlocks.size(); block++) {
+            final long blockEnd = Math.min((long) (block + 1) * BLOCK_SIZE, mTotalBytes);
+            if (blockEnd > end) {
+                break;
+            }
+            if (!mBlocks.get(block)) {
+                mBlocks.set(block);
+                marked++;
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * Push current block state to the provider. On-demand downloads have no
+     * background thread to finish them, so they complete here.
+     */
+    private void persist() {
+        final ContentValues values = new ContentValues();
+        final boolean completed;
+        synchronized (this) {
+            values.put(Downloads.Impl.COLUMN_BLOCK_MAP, mBlocks.toByteArray());
+            values.put(Downloads.Impl._DATA, mFileName);
+            values.put(Downloads.Impl.COLUMN_MIME_TYPE, mMimeType);
+            values.put(Downloads.Impl.COLUMN_TOTAL_BYTES, mTotalBytes);
+            completed = mBlocks.isComplete()
+                    && mInfo.mSparse == Downloads.Impl.SPARSE_ON_DEMAND;
+        }
+        values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, getPresentBytes());
+        values.put(Constants.ETAG, mFetcher.getETag());
+        values.put(Downloads.Impl.COLUMN_LAST_MODIFICATION, System.currentTimeMillis());
+        if (completed) {
+            values.put(Downloads.Impl.COLUMN_STATUS, Downloads.Impl.STATUS_SUCCESS);
+        }
+        DownloadsDao.getInstance(mContext).update(mInfo.mId, values, false, !completed);
+
+        if (completed) {
+            mInfo.sendIntentIfRequested();
+        }
+    }
+
+    private static IOException asIOException(StopRequestException e) {
+        final IOException io = new IOException(e.getMessage());
+        io.initCause(e);
+        return io;
+    }
+}
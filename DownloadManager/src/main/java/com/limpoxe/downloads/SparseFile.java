@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.limpoxe.downloads;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Seekable, read-only view of a sparse download, obtained from
+ * {@link DownloadManager#openSparseFile(long)}. Reads block while any missing
+ * blocks under the requested range are fetched from the server, so callers
+ * should stay off the main thread.
+ * <p>
+ * Positional reads through {@link #read(long, byte[], int, int)} may be issued
+ * from several threads at once; the file pointer used by
+ * {@link #read(byte[], int, int)} is not synchronized.
+ */
+public class SparseFile implements Closeable {
+    private final SparseDownload mDownload;
+
+    private long mPosition;
+    private boolean mClosed;
+
+    SparseFile(SparseDownload download) {
+        mDownload = download;
+    }
+
+    /**
+     * Return the full length of the remote file.
+     */
+    public long length() throws IOException {
+        checkOpen();
+        return mDownload.length();
+    }
+
+    /**
+     * Return the number of bytes already present locally.
+     */
+    public long getPresentBytes() throws IOException {
+        checkOpen();
+        return mDownload.getPresentBytes();
+    }
+
+    public long getFilePointer() {
+        return mPosition;
+    }
+
+    public void seek(long position) throws IOException {
+        checkOpen();
+        if (position < 0) {
+            throw new IOException("Negative seek offset");
+        }
+        mPosition = position;
+    }
+
+    /**
+     * Read from the current file pointer, advancing it by the bytes read.
+     *
+     * @return number of bytes read, or -1 at end of file.
+     */
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        final int read = read(mPosition, buffer, offset, count);
+        if (read > 0) {
+            mPosition += read;
+        }
+        return read;
+    }
+
+    /**
+     * Read at the given position without touching the file pointer.
+     *
+     * @return number of bytes read, or -1 at end of file.
+     */
+    public int read(long position, byte[] buffer, int offset, int count) throws IOException {
+        checkOpen();
+        if (offset < 0 || count < 0 || offset + count > buffer.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        return mDownload.read(position, buffer, offset, count);
+    }
+
+    @Override
+    public void close() {
+        if (!mClosed) {
+            mClosed = true;
+            mDownload.release();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("SparseFile already closed");
+        }
+    }
+}
@@ -17,18 +17,27 @@
 package com.limpoxe.downloads;
 
 import android.content.Context;
-import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.os.Build;
 import android.os.Environment;
 import android.os.StatFs;
+import android.system.Os;
+import android.system.StructStatVfs;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.limpoxe.downloads.utils.GuardedBy;
+
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Locale;
 
 import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static com.limpoxe.downloads.Downloads.Impl.STATUS_INSUFFICIENT_SPACE_ERROR;
 
 /**
  * Utility methods for managing storage space related to
@@ -46,37 +55,172 @@ public class StorageUtils {
      */
     static final long RESERVED_BYTES = 32 * 1024 * 1024;//32MB
 
+    /**
+     * Evict every purgeable download that may go, rather than just enough of
+     * them for the space requested. Open and recently used files are still
+     * spared.
+     */
     static boolean sForceFullEviction = false;
 
+    /** Files opened through {@link DownloadProvider} and not yet closed, with open counts */
+    @GuardedBy("sOpenFiles")
+    private static final HashMap<String, Integer> sOpenFiles = new HashMap<String, Integer>();
+
     /**
      * Ensure that requested free space exists on the partition backing the
-     * given {@link FileDescriptor}. If not enough space is available, it tries
-     * freeing up space as follows:
-     * <ul>
-     * <li>If backed by the data partition (including emulated external
-     * storage), then ask {@link PackageManager} to free space from cache
-     * directories.
-     * <li>If backed by the cache partition, then try deleting older downloads
-     * to free space.
-     * </ul>
+     * given {@link FileDescriptor}. If not enough space is available and the
+     * partition is the one holding the app's cache, it tries freeing up space
+     * by deleting the least recently used purgeable downloads.
+     *
+     * @param file the file open at {@code fd}, used where the descriptor
+     *            can't be inspected
+     */
+    public static void ensureAvailableSpace(Context context, FileDescriptor fd, File file,
+            long bytes) throws IOException, StopRequestException {
+        long availBytes = getAvailableBytes(fd, file);
+        if (availBytes >= bytes) {
+            // Underlying partition has enough space; go ahead
+            return;
+        }
+
+        if (isOnCachePartition(context, fd, file)) {
+            final long freedBytes = freeCacheStorage(context,
+                    sForceFullEviction ? Long.MAX_VALUE : bytes - availBytes);
+            if (freedBytes > 0) {
+                availBytes = getAvailableBytes(fd, file);
+            }
+        }
+
+        if (availBytes < bytes) {
+            throw new StopRequestException(STATUS_INSUFFICIENT_SPACE_ERROR,
+                    "Not enough free space; " + bytes + " requested, " + availBytes
+                    + " available");
+        }
+    }
+
+    /**
+     * Delete finished purgeable downloads, least recently used first, until
+     * the given number of bytes is freed. Rows and files go together, and
+     * files still open or used within {@link #MIN_DELETE_AGE} are never
+     * touched. Open files are only known from KitKat on, so nothing is
+     * evicted before it.
+     *
+     * @return number of bytes freed.
+     */
+    static long freeCacheStorage(Context context, long targetBytes) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            // DownloadProvider can't see when its files are closed
+            return 0;
+        }
+        final DownloadsDao dao = DownloadsDao.getInstance(context);
+        final long now = System.currentTimeMillis();
+        long[] evicted = new long[16];
+        int evictedCount = 0;
+        long freedBytes = 0;
+
+        // Holding the lock keeps the provider from handing out any of them
+        synchronized (sOpenFiles) {
+            final Cursor cursor = dao.queryPurgeableDownloads();
+            try {
+                while (freedBytes < targetBytes && cursor.moveToNext()) {
+                    if (now - cursor.getLong(2) < MIN_DELETE_AGE) {
+                        // The rest were used more recently still
+                        break;
+                    }
+                    final String path = cursor.getString(1);
+                    if (path != null && sOpenFiles.containsKey(path)) {
+                        continue;
+                    }
+                    if (path != null) {
+                        final File file = new File(path);
+                        final long length = file.length();
+                        if (file.delete()) {
+                            freedBytes += length;
+                        } else if (file.exists()) {
+                            Log.w(Constants.TAG, "Failed to evict " + path);
+                            continue;
+                        }
+                    }
+                    if (evictedCount == evicted.length) {
+                        evicted = Arrays.copyOf(evicted, evictedCount * 2);
+                    }
+                    evicted[evictedCount++] = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (evictedCount > 0) {
+                dao.deleteDownloads(Arrays.copyOf(evicted, evictedCount));
+            }
+        }
+
+        if (Constants.LOGV) {
+            Log.v(Constants.TAG, "Evicted " + evictedCount + " downloads, freeing "
+                    + freedBytes + " bytes");
+        }
+        return freedBytes;
+    }
+
+    /**
+     * Track a file handed out by {@link DownloadProvider} until
+     * {@link #noteFileClosed} is called for it, keeping it from eviction.
+     */
+    static void noteFileOpened(String path) {
+        synchronized (sOpenFiles) {
+            final Integer count = sOpenFiles.get(path);
+            sOpenFiles.put(path, (count != null) ? count + 1 : 1);
+        }
+    }
+
+    static void noteFileClosed(String path) {
+        synchronized (sOpenFiles) {
+            final Integer count = sOpenFiles.get(path);
+            if (count == null || count <= 1) {
+                sOpenFiles.remove(path);
+            } else {
+                sOpenFiles.put(path, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Return whether the given {@link FileDescriptor} is backed by the
+     * partition holding the app's cache, where purgeable downloads live.
      */
-    public static void ensureAvailableSpace(Context context, FileDescriptor fd)
-            throws IOException, StopRequestException {
-        //TODO
-        Log.w("StorageUtil", "todo should check space here");
+    private static boolean isOnCachePartition(Context context, FileDescriptor fd, File file)
+            throws IOException {
+        final File cacheDir = context.getCacheDir();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                return Os.fstat(fd).st_dev == Os.stat(cacheDir.getPath()).st_dev;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+        // Everything below the app's data directory shares one partition
+        return file != null && file.getAbsolutePath().startsWith(cacheDir.getParent());
     }
 
     /**
      * Return number of available bytes on the filesystem backing the given
      * {@link FileDescriptor}, minus any {@link #RESERVED_BYTES} buffer.
      */
-    private static long getAvailableBytes(FileDescriptor fd) throws IOException {
+    private static long getAvailableBytes(FileDescriptor fd, File file) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                final StructStatVfs stat = Os.fstatvfs(fd);
+                return (stat.f_bavail * stat.f_bsize) - RESERVED_BYTES;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
         try {
-            //TODO only Sdcard check??
-            String sdcardDir = Environment.getExternalStorageDirectory().getPath();
-            StatFs stat = new StatFs(sdcardDir);
+            final String dir = (file != null) ? file.getParent()
+                    : Environment.getExternalStorageDirectory().getPath();
+            StatFs stat = new StatFs(dir);
             long bytesAvailable = 0;
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
                 bytesAvailable = (long)stat.getBlockSizeLong() * (long)stat.getAvailableBlocksLong();
             } else {
                 bytesAvailable = (long)stat.getBlockSize() * (long)stat.getAvailableBlocks();